@@ -2,15 +2,13 @@ package xyz.theforks.ckvshader.patterns;
 
 import heronarts.glx.GLX;
 import heronarts.glx.ui.vg.VGraphics;
-import heronarts.lx.model.LXPoint;
 import xyz.theforks.ckvshader.util.GLUtil;
+import xyz.theforks.ckvshader.util.IsfParameters;
 import xyz.theforks.ckvshader.util.ShaderCache;
 import xyz.theforks.ckvshader.util.ShaderResourceUtil;
-import com.google.gson.JsonArray;
+import xyz.theforks.ckvshader.util.TransformFeedbackEngine;
 import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
 import com.jogamp.opengl.*;
-import com.jogamp.opengl.util.GLBuffers;
 import heronarts.lx.LX;
 import heronarts.lx.LXCategory;
 import heronarts.lx.LXComponent;
@@ -33,39 +31,24 @@ import heronarts.glx.ui.component.UILabel;
 import heronarts.glx.ui.component.UISlider;
 
 import java.io.File;
-import java.nio.FloatBuffer;
-import java.nio.IntBuffer;
 import java.util.*;
 import java.util.List;
-import java.util.Set;
-import java.util.HashSet;
 import java.util.logging.Logger;
 
-import static com.jogamp.opengl.GL.GL_ARRAY_BUFFER;
-import static com.jogamp.opengl.GL.GL_FLOAT;
-import static com.jogamp.opengl.GL.GL_POINTS;
-import static com.jogamp.opengl.GL.GL_STATIC_DRAW;
-import static com.jogamp.opengl.GL2ES2.GL_VERTEX_SHADER;
-import static com.jogamp.opengl.GL2ES3.*;
-
 /**
  * First attempt at using vertex shaders for volumetric rendering.
  */
 @LXCategory(LXCategory.FORM)
 public class CkVShader extends LXPattern implements UIDeviceControls<CkVShader> {
   private static final Logger logger = Logger.getLogger(CkVShader.class.getName());
-  public GL3 gl;
 
   StringParameter scriptName = new StringParameter("scriptName", "CkVShader/shaders/default.vtx");
-  CompoundParameter speed = new CompoundParameter("speed", 1f, 0f, 20f);
-  CompoundParameter alphaThresh = new CompoundParameter("alfTh", 0.1f, -0.1f, 1f).
-    setDescription("Intensity values below threshold will use transparency.");
 
   // These parameters are loaded from the ISF Json declaration at the top of the shader
-  LinkedHashMap<String, CompoundParameter> scriptParams = new LinkedHashMap<String, CompoundParameter>();
-  // For each script based parameter, store the uniform location in the compiled shader.  We use this
-  // to pass in the values for each frame.
-  Map<String, Integer> paramLocations = new HashMap<String, Integer>();
+  final IsfParameters isf;
+  final LinkedHashMap<String, CompoundParameter> scriptParams;
+  // Evaluates the shader for each point and owns the speed, alfTh and performance parameters.
+  final TransformFeedbackEngine engine;
   public final MutableParameter onReload = new MutableParameter("Reload");
   public final StringParameter error = new StringParameter("Error", null);
   private UIButton openButton;
@@ -73,6 +56,8 @@ public class CkVShader extends LXPattern implements UIDeviceControls<CkVShader>
   // Shader caching
   private ShaderCache shaderCache;
   private boolean forceReload = false;
+  // Set while the sliders have to exist as soon as a reload returns, so saved values can be restored.
+  private boolean updateSlidersNow = false;
 
   public static GLOffscreenAutoDrawable glDrawable;
 
@@ -88,9 +73,13 @@ public class CkVShader extends LXPattern implements UIDeviceControls<CkVShader>
     
     shaderCache = ShaderCache.getInstance(lx);
     addParameter("scriptName", scriptName);
-    addParameter("speed", speed);
-    addParameter("alfTh", alphaThresh);
-    glInit(lx);
+    isf = new IsfParameters(this::addParameter, this::removeParameter);
+    scriptParams = isf.getParameters();
+    engine = new TransformFeedbackEngine(lx, this);
+    engine.addParameters(this::addParameter);
+    updateSlidersNow = true;
+    reloadShader(scriptName.getString());
+    updateSlidersNow = false;
   }
 
   /**
@@ -121,285 +110,22 @@ public class CkVShader extends LXPattern implements UIDeviceControls<CkVShader>
     }
   }
 
-  private interface Buffer {
-    int VERTEX = 0;
-    int TBO = 1;
-    int MAX = 2;
-  }
-
-  // Destination for transform feedback buffer when copied back from the GPU
-  protected FloatBuffer tfbBuffer;
-  // Staging buffer for vertex data to be copied to the VBO on the GPU
-  protected FloatBuffer vertexBuffer;
-  // Stores the buffer IDs for the buffer IDs allocated on the GPU.
-  protected IntBuffer bufferNames = GLBuffers.newDirectIntBuffer(Buffer.MAX);
-  // The shader's ID on the GPU.
-  protected int shaderProgramId = -1;
-
-  protected int fTimeLoc = -2;
-
-  protected double totalTime = 0.0;
-
-  protected JsonObject isfObj;
-
-  float[] ledPositions;
-
-  protected void updateLedPositions() {
-    for (int i = 0; i < model.points.length; i++) {
-      ledPositions[i * 3] = model.points[i].xn;
-      ledPositions[i * 3 + 1] = model.points[i].yn;
-      ledPositions[i * 3 + 2] = model.points[i].zn;
-    }
-  }
-
-  /**
-   * Allocate the CPU buffers for the input and the output.  Vertex setting should be moved to later if the
-   * LXPoints are going to move around.
-   * Also, reserve the OpenGL buffer IDs.
-   * Load the shader, bind the output that feeds into the transform feedback buffer, and link the shader.
-   */
-  public void glInit(LX lx) {
-    LXPoint[] points = model.points;
-    ledPositions = new float[points.length * 3];
-    updateLedPositions();
-
-    glDrawable.getContext().makeCurrent();
-    gl = glDrawable.getGL().getGL3();
-    //vertexBuffer = GLBuffers.newDirectFloatBuffer(ledPositions);
-    vertexBuffer = FloatBuffer.wrap(ledPositions);
-
-    // This is just a destination, make it large enough to accept all the vertex data.  The vertex
-    // shader always outputs the all the elements.  To return just some of the points, attach a
-    // geometry shader and filter there.  You will also need to carry along the lxpoint index with
-    // the vertex data in that scenario to match it up after the transform feedback.
-    tfbBuffer = GLBuffers.newDirectFloatBuffer(vertexBuffer.capacity());
-
-    gl.glGenBuffers(Buffer.MAX, bufferNames);
-    glDrawable.getContext().release();
-
-    reloadShader(scriptName.getString());
-  }
-
-  private List<String> newSliderKeys = new ArrayList<String>();
-  private List<String> removeSliderKeys = new ArrayList<String>();
-
   public void reloadShader(String shaderName) {
     reloadShader(shaderName, true);
   }
 
 
   public void reloadShader(String shaderName, boolean clearSliders) {
-    glDrawable.getContext().makeCurrent();
-    if (shaderProgramId != -1)
-      gl.glDeleteProgram(shaderProgramId);
-
-    if (clearSliders) clearSliders();
-    newSliderKeys.clear();
-    removeSliderKeys.clear();
-
     // Resolve shader path to support plugin directories
     GLUtil.ShaderPathInfo pathInfo = GLUtil.resolveShaderPath(lx, shaderName);
-    String shaderDir = pathInfo.shaderDir;
-    String resolvedShaderName = pathInfo.shaderName;
     
     // Update parameter to store full path for consistency
     if (!shaderName.equals(pathInfo.fullPath)) {
       scriptName.setValue(pathInfo.fullPath);
     }
-    
-    boolean useCache = !forceReload && shaderCache.isCacheValid(resolvedShaderName, shaderDir) && 
-                      shaderCache.isGLContextValid(gl);
 
-    if (!GLUtil.CACHING_ENABLED) {
-      useCache = false; // Disable caching if the flag is set
-    }
-    if (useCache) {
-      // Try to load from cache
-      ShaderCache.CachedShaderResult cachedResult = shaderCache.loadCachedShader(resolvedShaderName, gl);
-      if (cachedResult != null) {
-        LX.log("Loading shader from cache: " + shaderName);
-        
-        // Restore from cached data
-        shaderProgramId = cachedResult.programId;
-        isfObj = cachedResult.entry.isfMetadata;
-        paramLocations.clear();
-        paramLocations.putAll(cachedResult.entry.uniformLocations);
-        for (String key : cachedResult.entry.uniformLocations.keySet()) {
-          LX.log("Restoring parameter: " + key + " at location: " + cachedResult.entry.uniformLocations.get(key));
-        }
-        
-        // Restore parameters from cached ISF metadata
-        try {
-          if (isfObj != null && isfObj.has("INPUTS")) {
-            JsonArray inputs = isfObj.getAsJsonArray("INPUTS");
-            if (inputs != null) {
-              for (int k = 0; k < inputs.size(); k++) {
-                try {
-                  JsonObject input = (JsonObject)inputs.get(k);
-                  if (input.has("NAME") && input.has("TYPE") && input.has("DEFAULT") && 
-                      input.has("MIN") && input.has("MAX")) {
-                    String pName = input.get("NAME").getAsString();
-                    String pType = input.get("TYPE").getAsString();
-                    float pDefault = input.get("DEFAULT").getAsFloat();
-                    float pMin = input.get("MIN").getAsFloat();
-                    float pMax = input.get("MAX").getAsFloat();
-                    
-                    if (clearSliders || (!clearSliders && !scriptParams.containsKey(pName))) {
-                      LX.log("Restoring parameter: " + pName + " with default: " + pDefault);
-                      CompoundParameter cp = new CompoundParameter(pName, pDefault, pMin, pMax);
-                      scriptParams.put(pName, cp);
-                      addParameter(pName, cp);
-                    }
-                    newSliderKeys.add(pName);
-                  } else {
-                    LX.log("Skipping cached ISF input with missing required fields at index " + k);
-                  }
-                } catch (Exception e) {
-                  LX.log("Error restoring cached ISF input at index " + k + ": " + e.getMessage());
-                }
-              }
-            }
-          }
-        } catch (Exception e) {
-          LX.log("Error restoring cached ISF metadata: " + e.getMessage());
-        }
-        
-        // Clean up old parameters if needed
-        if (!clearSliders) {
-          for (String key : scriptParams.keySet()) {
-            if (!newSliderKeys.contains(key)) {
-              removeSliderKeys.add(key);
-            }
-          }
-          for (String key : removeSliderKeys) {
-            removeParameter(key);
-            scriptParams.remove(key);
-          }
-        }
-        
-        // Find fTime location from cached data
-        //fTimeLoc = paramLocations.getOrDefault("fTime", -2);
-        // fTime isn't one of the script-based params so it doesn't get passed into our shader cache saving
-        // mechanism so it is not stored in the manifest.
-        fTimeLoc = gl.glGetUniformLocation(shaderProgramId, "fTime");
-        LX.log("Found fTimeLoc at: " + fTimeLoc);
-        glDrawable.getContext().release();
-        onReload.bang();
-        forceReload = false; // Reset force reload flag
-        return;
-      }
-    }
-
-    // Cache miss or forced reload - compile from source
-    LX.log("Compiling shader from source: " + shaderName);
-    shaderProgramId = gl.glCreateProgram();
-    String shaderSource = "";
-    Set<String> dependencies = new HashSet<>();
-
-    try {
-      GLUtil.ShaderLoadResult result = GLUtil.loadShaderWithDependencies(shaderDir, resolvedShaderName + ".vtx");
-      shaderSource = result.source;
-      dependencies = result.dependencies;
-    } catch (Exception ex) {
-      LX.log("Error loading shader: " + ex.getMessage());
-    }
-
-    try {
-      int endOfComment = shaderSource.indexOf("*/");
-      int startOfComment = shaderSource.indexOf("/*");
-      
-      if (startOfComment >= 0 && endOfComment > startOfComment) {
-        String jsonDef = shaderSource.substring(startOfComment + 2, endOfComment);
-        isfObj = (JsonObject)new JsonParser().parse(jsonDef);
-        
-        if (isfObj != null && isfObj.has("INPUTS")) {
-          JsonArray inputs = isfObj.getAsJsonArray("INPUTS");
-          if (inputs != null) {
-            for (int k = 0; k < inputs.size(); k++) {
-              try {
-                JsonObject input = (JsonObject)inputs.get(k);
-                if (input.has("NAME") && input.has("TYPE") && input.has("DEFAULT") && 
-                    input.has("MIN") && input.has("MAX")) {
-                  String pName = input.get("NAME").getAsString();
-                  String pType = input.get("TYPE").getAsString();
-                  float pDefault = input.get("DEFAULT").getAsFloat();
-                  float pMin = input.get("MIN").getAsFloat();
-                  float pMax = input.get("MAX").getAsFloat();
-                  
-                  if (clearSliders || (!clearSliders && !scriptParams.containsKey(pName))) {
-                    CompoundParameter cp = new CompoundParameter(pName, pDefault, pMin, pMax);
-                    scriptParams.put(pName, cp);
-                    addParameter(pName, cp);
-                  }
-                  newSliderKeys.add(pName);
-                } else {
-                  LX.log("Skipping ISF input with missing required fields at index " + k);
-                }
-              } catch (Exception e) {
-                LX.log("Error parsing ISF input at index " + k + ": " + e.getMessage());
-              }
-            }
-          }
-        } else {
-          LX.log("No ISF metadata or INPUTS found in shader");
-        }
-      } else {
-        LX.log("No ISF comment block found in shader");
-      }
-    } catch (Exception e) {
-      LX.log("Error parsing ISF metadata: " + e.getMessage());
-      // Continue without ISF parameters rather than crashing
-    }
-    
-    if (!clearSliders) {
-      for (String key : scriptParams.keySet()) {
-        if (!newSliderKeys.contains(key)) {
-          removeSliderKeys.add(key);
-        }
-      }
-      for (String key : removeSliderKeys) {
-        removeParameter(key);
-        scriptParams.remove(key);
-      }
-    }
-
-    int shaderId = -1;
-    try {
-      shaderId = GLUtil.createShader(gl, shaderProgramId, shaderSource, GL_VERTEX_SHADER);
-    } catch (Exception ex) {
-      LX.log("Error creating shader: " + ex.getMessage());
-    }
-
-    gl.glTransformFeedbackVaryings(shaderProgramId, 1, new String[]{"outColor"}, GL_INTERLEAVED_ATTRIBS);
-    GLUtil.link(gl, shaderProgramId);
-
-    // Find uniform locations
-    paramLocations.clear();
-    fTimeLoc = gl.glGetUniformLocation(shaderProgramId, "fTime");
-    LX.log("Found fTimeLoc at: " + fTimeLoc);
-    for (String scriptParam : scriptParams.keySet()) {
-      int paramLoc = gl.glGetUniformLocation(shaderProgramId, scriptParam);
-      paramLocations.put(scriptParam, paramLoc);
-    }
-
-    for (String key : paramLocations.keySet()) {
-      LX.log("Parameter: " + key + " at location: " + paramLocations.get(key));
-    }
-
-    // Cache the compiled shader
-    if (GLUtil.CACHING_ENABLED) {
-      try {
-        LX.log("Attempting to cache shader: " + resolvedShaderName + " with program ID: " + shaderProgramId);
-        shaderCache.cacheShader(resolvedShaderName, shaderDir, shaderProgramId, paramLocations, isfObj, dependencies, gl);
-        LX.log("Cache attempt completed for: " + resolvedShaderName);
-      } catch (Exception ex) {
-        LX.log("Warning: Failed to cache shader " + resolvedShaderName + ": " + ex.getMessage());
-        ex.printStackTrace();
-      }
-    }
-
-    glDrawable.getContext().release();
-    onReload.bang();
+    // Built in the background, the current shader keeps running until the new one is swapped in.
+    engine.loadShader(pathInfo, isf, forceReload, clearSliders, updateSlidersNow, onReload::bang);
     forceReload = false; // Reset force reload flag
   }
 
@@ -409,58 +135,17 @@ public class CkVShader extends LXPattern implements UIDeviceControls<CkVShader>
     if (obj.has(LXComponent.KEY_PARAMETERS)) {
       JsonObject params = obj.getAsJsonObject(LXComponent.KEY_PARAMETERS);
       if (params.has("scriptName")) {
+        updateSlidersNow = true;
         this.scriptName.setValue(params.get("scriptName").getAsString());
+        updateSlidersNow = false;
       }
     }
     super.load(lx, obj);
   }
 
-  /**
-   * Run once per frame.  Copy the vertex data to the OpenGL buffer.
-   * Tell OpenGL which buffer to use as the transform feedback buffer.
-   * GL_RASTERIZER_DISCARD tells OpenGL to stop the pipeline after the vertex shader since
-   * we are just using OpenGL Transform Feedback.
-   *
-   * @param deltaMs
-   */
-  public void glRun(double deltaMs) {
-    totalTime += deltaMs/1000.0;
-    glDrawable.getContext().makeCurrent();
-    updateLedPositions();
-    gl.glBindBuffer(GL_ARRAY_BUFFER, bufferNames.get(Buffer.VERTEX));
-    gl.glBufferData(GL_ARRAY_BUFFER, vertexBuffer.capacity() * Float.BYTES, vertexBuffer, GL_STATIC_DRAW);
-    int inputAttrib = gl.glGetAttribLocation(shaderProgramId, "position");
-    gl.glEnableVertexAttribArray(inputAttrib);
-    gl.glVertexAttribPointer(inputAttrib, 3, GL_FLOAT, false, 0, 0);
-
-    gl.glBindBuffer(GL_ARRAY_BUFFER, bufferNames.get(Buffer.TBO));
-    gl.glBufferData(GL_ARRAY_BUFFER, tfbBuffer.capacity() * Float.BYTES, tfbBuffer, GL_STATIC_READ);
-    gl.glBindBufferBase(GL_TRANSFORM_FEEDBACK_BUFFER, 0, bufferNames.get(Buffer.TBO));
-
-    gl.glEnable(GL_RASTERIZER_DISCARD);
-    gl.glUseProgram(shaderProgramId);
-
-    gl.glUniform1f(fTimeLoc, speed.getValuef() * (float)totalTime);
-    for (String paramName : scriptParams.keySet()) {
-      gl.glUniform1f(paramLocations.get(paramName), scriptParams.get(paramName).getValuef());
-    }
-    gl.glBeginTransformFeedback(GL_POINTS);
-    {
-      gl.glDrawArrays(GL_POINTS, 0, model.points.length);
-    }
-    gl.glEndTransformFeedback();
-    gl.glFlush();
-
-    gl.glGetBufferSubData(GL_TRANSFORM_FEEDBACK_BUFFER, 0, tfbBuffer.capacity() * Float.BYTES, tfbBuffer);
-
-    gl.glUseProgram(0);
-    gl.glDisable(GL_RASTERIZER_DISCARD);
-
-    glDrawable.getContext().release();
-  }
-
   @Override
   public void onParameterChanged(LXParameter p) {
+    engine.onParameterChanged(p);
     if (p == this.scriptName) {
       LX.log("scriptName parameter changed!");
       reloadShader(((StringParameter)p).getString());
@@ -470,41 +155,11 @@ public class CkVShader extends LXPattern implements UIDeviceControls<CkVShader>
   @Override
   public void onActive() {
     super.onActive();
-    totalTime = 0f;
-  }
-
-  private void clearSliders() {
-    for (String key : scriptParams.keySet()) {
-      removeParameter(key);
-    }
-    scriptParams.clear();
-
+    engine.resetTime();
   }
 
   public void run(double deltaMs) {
-    glRun(deltaMs);
-    LXPoint[] points = model.points;
-    // TODO(tracy): At some low brightness threshold, we should introduce alpha transparency.
-    // The alpha level should be scaled from 1 to 0 based on the range from 0 to threshold.
-    // Hardcoding the threshold for now since it is some complicated UI work to fit it into
-    // the dynamic parameter system.
-    float threshold = alphaThresh.getValuef();
-    for (int i = 0; i < points.length; i++) {
-      float red = tfbBuffer.get(i * 3);
-      float green = tfbBuffer.get(i * 3 + 1);
-      float blue = tfbBuffer.get(i * 3 + 2);
-      int color = LXColor.rgbf(red, green, blue);
-      float bright = LXColor.luminosity(color) / 100f;
-      if (bright < threshold) {
-        float alpha = (bright / threshold);
-        colors[points[i].index] = LXColor.rgba(LXColor.red(color),
-          LXColor.green(color),
-          LXColor.blue(color),
-          (int) (255f * alpha));
-      } else {
-        colors[points[i].index] = color;
-      }
-    }
+    engine.run(deltaMs, colors);
   }
 
   @Override
@@ -573,7 +228,7 @@ public class CkVShader extends LXPattern implements UIDeviceControls<CkVShader>
       .setDescription("Force reload shader (bypass cache)")
       .addToContainer(uiDevice);
 
-    if (GLUtil.CACHING_ENABLED) {
+    if (GLUtil.isCachingEnabled()) {
       final UIButton clearCacheButton = (UIButton) new UIButton(171, 0, 18, 18) {
         @Override
         public void onToggle(boolean on) {
@@ -602,11 +257,11 @@ public class CkVShader extends LXPattern implements UIDeviceControls<CkVShader>
       sliders.removeAllChildren();
       // Only add built-in sliders if they're not already present as ISF parameters
       if (!pattern.scriptParams.containsKey("alfTh")) {
-        new UISlider(UISlider.Direction.VERTICAL, 40, sliders.getContentHeight() - 14, alphaThresh)
+        new UISlider(UISlider.Direction.VERTICAL, 40, sliders.getContentHeight() - 14, engine.alphaThresh)
           .addToContainer(sliders);
       }
       if (!pattern.scriptParams.containsKey("speed")) {
-        new UISlider(UISlider.Direction.VERTICAL, 40, sliders.getContentHeight() - 14, speed)
+        new UISlider(UISlider.Direction.VERTICAL, 40, sliders.getContentHeight() - 14, engine.speed)
           .addToContainer(sliders);
       }
       for (CompoundParameter scriptParam : pattern.scriptParams.values()) {
@@ -658,6 +313,7 @@ public class CkVShader extends LXPattern implements UIDeviceControls<CkVShader>
 
   @Override
   public void dispose() {  
+    engine.dispose();
     for (LXListenableParameter param : listeners.keySet()) {
       for (LXParameterListener listener : listeners.get(param)) {
         param.removeListener(listener);
@@ -1,13 +1,15 @@
 package xyz.theforks.ckvshader.patterns;
 
+import xyz.theforks.ckvshader.util.AudioTextureInput;
 import xyz.theforks.ckvshader.util.GLUtil;
+import xyz.theforks.ckvshader.util.GLWorker;
+import xyz.theforks.ckvshader.util.IsfParameters;
 import xyz.theforks.ckvshader.util.ShaderCache;
-import com.google.gson.JsonArray;
+import xyz.theforks.ckvshader.util.TextureCache;
+import xyz.theforks.ckvshader.util.TextureInput;
+import xyz.theforks.ckvshader.util.TransformFeedbackEngine;
 import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
 import com.jogamp.opengl.*;
-import com.jogamp.opengl.util.GLBuffers;
-import com.jogamp.opengl.util.texture.awt.AWTTextureIO;
 import heronarts.glx.GLX;
 import heronarts.glx.ui.component.UIButton;
 import heronarts.glx.ui.component.UILabel;
@@ -15,10 +17,8 @@ import heronarts.glx.ui.vg.VGraphics;
 import heronarts.lx.LX;
 import heronarts.lx.LXCategory;
 import heronarts.lx.LXComponent;
-import heronarts.lx.audio.GraphicMeter;
 import heronarts.lx.color.LXColor;
 import heronarts.lx.command.LXCommand;
-import heronarts.lx.model.LXPoint;
 import heronarts.lx.parameter.CompoundParameter;
 import heronarts.lx.parameter.LXParameter;
 import heronarts.lx.parameter.MutableParameter;
@@ -31,489 +31,124 @@ import heronarts.lx.utils.LXUtils;
 import heronarts.glx.ui.UI2dContainer;
 import heronarts.glx.ui.component.UISlider;
 
-import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
 import java.io.File;
-import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.FloatBuffer;
-import java.nio.IntBuffer;
 import java.util.*;
-import java.util.List;
-import java.util.Set;
-import java.util.HashSet;
 import java.util.logging.Logger;
 
-import static com.jogamp.opengl.GL.GL_ARRAY_BUFFER;
-import static com.jogamp.opengl.GL.GL_FLOAT;
-import static com.jogamp.opengl.GL.GL_POINTS;
-import static com.jogamp.opengl.GL.GL_STATIC_DRAW;
-import static com.jogamp.opengl.GL2ES2.GL_VERTEX_SHADER;
-import static com.jogamp.opengl.GL2ES3.*;
-
 /**
  * First attempt at using vertex shaders for volumetric rendering.
  */
 @LXCategory(LXCategory.FORM)
 public class CkVShaderTex extends LXPattern implements UIDeviceControls<CkVShaderTex> {
   private static final Logger logger = Logger.getLogger(CkVShaderTex.class.getName());
-  public GL3 gl;
-
   StringParameter scriptName = new StringParameter("scriptName", "CkVShader/shaders/texture.vtx");
   StringParameter texName = new StringParameter("tName", "fractal5");
-  CompoundParameter speed = new CompoundParameter("speed", 1f, 0f, 20f);
-  CompoundParameter alphaThresh = new CompoundParameter("alfTh", 0.1f, -0.1f, 1f).
-    setDescription("Intensity values below threshold will use transparency.");
-
 
   // These parameters are loaded from the ISF Json declaration at the top of the shader
-  LinkedHashMap<String, CompoundParameter> scriptParams = new LinkedHashMap<String, CompoundParameter>();
-  // For each script based parameter, store the uniform location in the compiled shader.  We use this
-  // to pass in the values for each frame.
-  Map<String, Integer> paramLocations = new HashMap<String, Integer>();
+  final IsfParameters isf;
+  final LinkedHashMap<String, CompoundParameter> scriptParams;
+  // Evaluates the shader for each point and owns the speed, alfTh and performance parameters.
+  final TransformFeedbackEngine engine;
   public final MutableParameter onReload = new MutableParameter("Reload");
   public final StringParameter error = new StringParameter("Error", null);
   private UIButton openButton;
   private UIButton texOpenButton;
-  com.jogamp.opengl.util.texture.Texture glTexture;
-  public int textureLoc = -3;
-  public int fftTextureLoc = -3;
-
-  public final int TEXTURE_SIZE = 512;
+  // Swapped on the engine thread, bound on the GL worker.
+  volatile com.jogamp.opengl.util.texture.Texture glTexture;
+  // Incremented by every texture load, so only the latest one is swapped in.
+  private long textureGeneration = 0;
+  private boolean disposed = false;
 
   public CkVShaderTex(LX lx) {
     super(lx);
 
-    addParameter("scriptName", scriptName);
-    addParameter("texName", texName);
-    addParameter("speed", speed);
-    addParameter("alfTh", alphaThresh);
-
-
     CkVShader.initializeGLContext(lx);
     // Export default shaders from JAR resources to filesystem
     xyz.theforks.ckvshader.util.ShaderResourceUtil.exportDefaultShaders(lx);
     
     shaderCache = ShaderCache.getInstance(lx);
-    
+    addParameter("scriptName", scriptName);
+    addParameter("texName", texName);
+    isf = new IsfParameters(this::addParameter, this::removeParameter);
+    scriptParams = isf.getParameters();
+    engine = new TransformFeedbackEngine(lx, this);
+    // The image on texture unit 0 and the audio meter on unit 1.
+    engine.addInput(new TextureInput("textureSampler", 0,
+      () -> glTexture != null ? glTexture.getTextureObject() : 0));
+    engine.addInput(new AudioTextureInput(lx, 1));
+    engine.addParameters(this::addParameter);
+
     texName.setValue("fractal5");
     
-    glInit();
+    updateSlidersNow = true;
+    reloadShader(scriptName.getString());
+    updateSlidersNow = false;
     reloadTexture(texName.getString());
   }
-
-  private interface Buffer {
-    int VERTEX = 0;
-    int TBO = 1;
-    int MAX = 2;
-  }
-
-  // Destination for transform feedback buffer when copied back from the GPU
-  protected FloatBuffer tfbBuffer;
-  // Staging buffer for vertex data to be copied to the VBO on the GPU
-  protected FloatBuffer vertexBuffer;
-  // Stores the buffer IDs for the buffer IDs allocated on the GPU.
-  protected IntBuffer bufferNames = GLBuffers.newDirectIntBuffer(Buffer.MAX);
-  // The shader's ID on the GPU.
-  protected int shaderProgramId = -1;
-
-  protected int fTimeLoc = -2;
-
-  protected double totalTime = 0.0;
-
-  protected JsonObject isfObj;
-
-  float[] ledPositions;
-
-  int[] audioTextureHandle = {0};
-  byte[] fft = new byte[1024];
   
   // Shader caching
   private ShaderCache shaderCache;
   private boolean forceReload = false;
-  
-  // Texture resource management
-  private GLUtil.TextureLimits textureLimits;
-  private boolean textureInitialized = false;
-
-  protected void updateLedPositions() {
-    for (int i = 0; i < model.points.length; i++) {
-      ledPositions[i * 3] = model.points[i].xn;
-      ledPositions[i * 3 + 1] = model.points[i].yn;
-      ledPositions[i * 3 + 2] = model.points[i].zn;
-    }
-  }
-
-  protected void updateAudioTexture() {
-    // Create Audio FFT texture
-    if (fftTextureLoc < 0 || audioTextureHandle[0] == 0) {
-      return;
-    }
-    
-    // Validate texture handle
-    if (audioTextureHandle[0] <= 0) {
-      LX.log("Invalid audio texture handle: " + audioTextureHandle[0]);
-      return;
-    }
-    
-    GraphicMeter eq = lx.engine.audio.meter;
-    for (int i = 0; i < 1024; i++) {
-      int bandVal = (int)(eq.getBandf(i%16) * 255.0);
-      fft[i++] = (byte)(bandVal);
-    }
-    ByteBuffer fftBuf = ByteBuffer.wrap(fft);
-    
-    gl.glBindTexture(GL_TEXTURE_2D, audioTextureHandle[0]);
-    GLUtil.checkGLError(gl, "audio texture bind");
-    
-    gl.glTexImage2D(GL_TEXTURE_2D, 0, GL_R8, 512, 2, 0, GL_RED, GL_UNSIGNED_BYTE, fftBuf);
-    GLUtil.checkGLError(gl, "audio texture data update");
-  }
-
-  /**
-   * Allocate the CPU buffers for the input and the output.  Vertex setting should be moved to later if the
-   * LXPoints are going to move around.
-   * Also, reserve the OpenGL buffer IDs.
-   * Load the shader, bind the output that feeds into the transform feedback buffer, and link the shader.
-   */
-  public void glInit() {
-    LXPoint[] points = model.points;
-    ledPositions = new float[points.length * 3];
-    updateLedPositions();
-
-    CkVShader.glDrawable.getContext().makeCurrent();
-    gl = CkVShader.glDrawable.getGL().getGL3();
-    
-    // Query texture limits from hardware
-    if (textureLimits == null) {
-      textureLimits = GLUtil.queryTextureLimits(gl);
-      LX.log("OpenGL Texture Limits: " + textureLimits.toString());
-    }
-    
-    vertexBuffer = FloatBuffer.wrap(ledPositions);
-    //vertexBuffer = GLBuffers.newDirectFloatBuffer(ledPositions);
-
-    // This is just a destination, make it large enough to accept all the vertex data.  The vertex
-    // shader always outputs the all the elements.  To return just some of the points, attach a
-    // geometry shader and filter there.  You will also need to carry along the lxpoint index with
-    // the vertex data in that scenario to match it up after the transform feedback.
-    tfbBuffer = GLBuffers.newDirectFloatBuffer(vertexBuffer.capacity());
-    if (glTexture != null) {
-      // Set texture parameters for sampling
-      glTexture.bind(gl);
-      gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MAG_FILTER, GL.GL_NEAREST);
-      gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MIN_FILTER, GL.GL_NEAREST);
-      gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_WRAP_S, GL.GL_MIRRORED_REPEAT);
-      gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_WRAP_T, GL.GL_MIRRORED_REPEAT);
-    }
-    gl.glGenBuffers(Buffer.MAX, bufferNames);
-    GLUtil.checkGLError(gl, "buffer generation");
-    
-    // Set up audio texture.
-    gl.glGenTextures(1, audioTextureHandle, 0);
-    GLUtil.checkGLError(gl, "audio texture generation");
-    
-    if (audioTextureHandle[0] > 0) {
-      gl.glBindTexture(GL_TEXTURE_2D, audioTextureHandle[0]);
-      gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MAG_FILTER, GL.GL_NEAREST);
-      gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MIN_FILTER, GL.GL_NEAREST);
-      gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_WRAP_S, GL.GL_MIRRORED_REPEAT);
-      gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_WRAP_T, GL.GL_MIRRORED_REPEAT);
-      GLUtil.checkGLError(gl, "audio texture parameter setting");
-      LX.log("Created audio texture with handle: " + audioTextureHandle[0]);
-    } else {
-      LX.log("Failed to generate audio texture handle");
-    }
-
-    CkVShader.glDrawable.getContext().release();
-
-    reloadShader(scriptName.getString());
-  }
-
-  private List<String> newSliderKeys = new ArrayList<String>();
-  private List<String> removeSliderKeys = new ArrayList<String>();
+  // Set while the sliders have to exist as soon as a reload returns, so saved values can be restored.
+  private boolean updateSlidersNow = false;
 
   public void reloadShader(String shaderName) {
     reloadShader(shaderName, true);
   }
 
-
   public void reloadShader(String shaderName, boolean clearSliders) {
-    CkVShader.glDrawable.getContext().makeCurrent();
-    if (shaderProgramId != -1)
-      gl.glDeleteProgram(shaderProgramId);
-
-    if (clearSliders) clearSliders();
-    newSliderKeys.clear();
-    removeSliderKeys.clear();
-
     // Resolve shader path to support plugin directories
     GLUtil.ShaderPathInfo pathInfo = GLUtil.resolveShaderPath(lx, shaderName);
-    String shaderDir = pathInfo.shaderDir;
-    String resolvedShaderName = pathInfo.shaderName;
     
     // Update parameter to store full path for consistency
     if (!shaderName.equals(pathInfo.fullPath)) {
       scriptName.setValue(pathInfo.fullPath);
     }
-    
-    boolean useCache = !forceReload && shaderCache.isCacheValid(resolvedShaderName, shaderDir) && 
-                      shaderCache.isGLContextValid(gl);
-    if (!GLUtil.CACHING_ENABLED) {
-      useCache = false;
-    }
-    if (useCache) {
-      // Try to load from cache
-      ShaderCache.CachedShaderResult cachedResult = shaderCache.loadCachedShader(resolvedShaderName, gl);
-      if (cachedResult != null) {
-        LX.log("Loading shader from cache: " + shaderName);
-        
-        // Restore from cached data
-        shaderProgramId = cachedResult.programId;
-        isfObj = cachedResult.entry.isfMetadata;
-        paramLocations.clear();
-        paramLocations.putAll(cachedResult.entry.uniformLocations);
-        for (String key : cachedResult.entry.uniformLocations.keySet()) {
-          LX.log("Restoring parameter: " + key + " at location: " + cachedResult.entry.uniformLocations.get(key));
-        }
-        
-        // Restore parameters from cached ISF metadata
-        try {
-          if (isfObj != null && isfObj.has("INPUTS")) {
-            JsonArray inputs = isfObj.getAsJsonArray("INPUTS");
-            if (inputs != null) {
-              for (int k = 0; k < inputs.size(); k++) {
-                try {
-                  JsonObject input = (JsonObject)inputs.get(k);
-                  if (input.has("NAME") && input.has("TYPE") && input.has("DEFAULT") && 
-                      input.has("MIN") && input.has("MAX")) {
-                    String pName = input.get("NAME").getAsString();
-                    String pType = input.get("TYPE").getAsString();
-                    float pDefault = input.get("DEFAULT").getAsFloat();
-                    float pMin = input.get("MIN").getAsFloat();
-                    float pMax = input.get("MAX").getAsFloat();
-                    
-                    if (clearSliders || (!clearSliders && !scriptParams.containsKey(pName))) {
-                      LX.log("Restoring parameter: " + pName + " with default: " + pDefault);
-                      CompoundParameter cp = new CompoundParameter(pName, pDefault, pMin, pMax);
-                      scriptParams.put(pName, cp);
-                      addParameter(pName, cp);
-                    }
-                    newSliderKeys.add(pName);
-                  } else {
-                    LX.log("Skipping cached ISF input with missing required fields at index " + k);
-                  }
-                } catch (Exception e) {
-                  LX.log("Error restoring cached ISF input at index " + k + ": " + e.getMessage());
-                }
-              }
-            }
-          }
-        } catch (Exception e) {
-          LX.log("Error restoring cached ISF metadata: " + e.getMessage());
-        }
-        
-        // Clean up old parameters if needed
-        if (!clearSliders) {
-          for (String key : scriptParams.keySet()) {
-            if (!newSliderKeys.contains(key)) {
-              removeSliderKeys.add(key);
-            }
-          }
-          for (String key : removeSliderKeys) {
-            removeParameter(key);
-            scriptParams.remove(key);
-          }
-        }
-        
-        // Find uniform locations from cached data
-        fTimeLoc = gl.glGetUniformLocation(shaderProgramId, "fTime");
-        LX.log("Found fTimeLoc at: " + fTimeLoc);
-        if (glTexture != null) {
-          textureLoc = gl.glGetUniformLocation(shaderProgramId, "textureSampler");
-          LX.log("Found textureSampler at location: " + textureLoc);
-        }
-        if (audioTextureHandle[0] != 0) {
-          fftTextureLoc = gl.glGetUniformLocation(shaderProgramId, "audioTexture");
-          LX.log("Found audioTexture at location: " + fftTextureLoc);
-        }
-        CkVShader.glDrawable.getContext().release();
-        onReload.bang();
-        forceReload = false; // Reset force reload flag
-        return;
-      }
-    }
-
-    // Cache miss or forced reload - compile from source
-    LX.log("Compiling shader from source: " + shaderName);
-    shaderProgramId = gl.glCreateProgram();
-    String shaderSource = "";
-    Set<String> dependencies = new HashSet<>();
-
-    try {
-      GLUtil.ShaderLoadResult result = GLUtil.loadShaderWithDependencies(shaderDir, resolvedShaderName + ".vtx");
-      shaderSource = result.source;
-      dependencies = result.dependencies;
-    } catch (Exception ex) {
-      LX.log("Error loading shader: " + ex.getMessage());
-    }
 
-    try {
-      int endOfComment = shaderSource.indexOf("*/");
-      int startOfComment = shaderSource.indexOf("/*");
-      
-      if (startOfComment >= 0 && endOfComment > startOfComment) {
-        String jsonDef = shaderSource.substring(startOfComment + 2, endOfComment);
-        isfObj = (JsonObject)new JsonParser().parse(jsonDef);
-        
-        if (isfObj != null && isfObj.has("INPUTS")) {
-          JsonArray inputs = isfObj.getAsJsonArray("INPUTS");
-          if (inputs != null) {
-            for (int k = 0; k < inputs.size(); k++) {
-              try {
-                JsonObject input = (JsonObject)inputs.get(k);
-                if (input.has("NAME") && input.has("TYPE") && input.has("DEFAULT") && 
-                    input.has("MIN") && input.has("MAX")) {
-                  String pName = input.get("NAME").getAsString();
-                  String pType = input.get("TYPE").getAsString(); // must be float for now
-                  float pDefault = input.get("DEFAULT").getAsFloat();
-                  float pMin = input.get("MIN").getAsFloat();
-                  float pMax = input.get("MAX").getAsFloat();
-                  
-                  if (clearSliders || (!clearSliders && !scriptParams.containsKey(pName))) {
-                    CompoundParameter cp = new CompoundParameter(pName, pDefault, pMin, pMax);
-                    scriptParams.put(pName, cp);
-                    addParameter(pName, cp);
-                  }
-                  newSliderKeys.add(pName);
-                } else {
-                  LX.log("Skipping ISF input with missing required fields at index " + k);
-                }
-              } catch (Exception e) {
-                LX.log("Error parsing ISF input at index " + k + ": " + e.getMessage());
-              }
-            }
-          }
-        } else {
-          LX.log("No ISF metadata or INPUTS found in shader");
-        }
-      } else {
-        LX.log("No ISF comment block found in shader");
-      }
-    } catch (Exception e) {
-      LX.log("Error parsing ISF metadata: " + e.getMessage());
-      // Continue without ISF parameters rather than crashing
-    }
-    
-    if (!clearSliders) {
-      for (String key : scriptParams.keySet()) {
-        if (!newSliderKeys.contains(key)) {
-          removeSliderKeys.add(key);
-        }
-      }
-      for (String key : removeSliderKeys) {
-        removeParameter(key);
-        scriptParams.remove(key);
-      }
-    }
-
-    int shaderId = -1;
-    try {
-      shaderId = GLUtil.createShader(gl, shaderProgramId, shaderSource, GL_VERTEX_SHADER);
-    } catch (Exception ex) {
-      LX.log("Error creating shader: " + ex.getMessage());
-    }
-
-    gl.glTransformFeedbackVaryings(shaderProgramId, 1, new String[]{"outColor"}, GL_INTERLEAVED_ATTRIBS);
-    GLUtil.link(gl, shaderProgramId);
-
-    // Find uniform locations
-    paramLocations.clear();
-    fTimeLoc = gl.glGetUniformLocation(shaderProgramId, "fTime");
-    LX.log("Found fTimeLoc at: " + fTimeLoc);
-    for (String scriptParam : scriptParams.keySet()) {
-      int paramLoc = gl.glGetUniformLocation(shaderProgramId, scriptParam);
-      paramLocations.put(scriptParam, paramLoc);
-    }
-
-    for (String key : paramLocations.keySet()) {
-      LX.log("Parameter: " + key + " at location: " + paramLocations.get(key));
-    }
-
-    if (glTexture != null) {
-      textureLoc = gl.glGetUniformLocation(shaderProgramId, "textureSampler");
-      LX.log("Found textureSampler at location: " + textureLoc);
-    }
-    if (audioTextureHandle[0] != 0) {
-      fftTextureLoc = gl.glGetUniformLocation(shaderProgramId, "audioTexture");
-      LX.log("Found audioTexture at location: " + fftTextureLoc);
-    }
-
-    if (GLUtil.CACHING_ENABLED) {
-      // Cache the compiled shader
-      try {
-        LX.log("Attempting to cache shader: " + shaderName + " with program ID: " + shaderProgramId);
-        shaderCache.cacheShader(resolvedShaderName, shaderDir, shaderProgramId, paramLocations, isfObj, dependencies, gl);
-        LX.log("Cache attempt completed for: " + shaderName);
-      } catch (Exception ex) {
-        LX.log("Warning: Failed to cache shader " + shaderName + ": " + ex.getMessage());
-        ex.printStackTrace();
-      }
-    }
-  
-
-    CkVShader.glDrawable.getContext().release();
-    onReload.bang();
+    // Built in the background, the current shader keeps running until the new one is swapped in.
+    engine.loadShader(pathInfo, isf, forceReload, clearSliders, updateSlidersNow, onReload::bang);
     forceReload = false; // Reset force reload flag
   }
 
+  /**
+   * Load a texture without waiting for it.  The image is decoded in the background and uploaded
+   * on the GL worker, and the current texture is used until the new one is swapped in on the
+   * engine thread.
+   */
   public void reloadTexture(String textureName) {
     LX.log("Loading texture: " + textureName);
     String texturesDir =  GLUtil.shaderDir(lx) + File.separator + "textures" + File.separator;
-    BufferedImage textureImage = null;
-    try {
-      textureImage = ImageIO.read(new File(texturesDir + textureName + ".png"));
-    } catch (IOException ioex) {
-      LX.log("Error loading texture: " + textureName + " : " + ioex.getMessage());
-      return;
-    }
-    // Validate and resize texture if needed
-    if (textureImage != null && textureLimits != null) {
-      if (!GLUtil.validateTextureSize(textureImage.getWidth(), textureImage.getHeight(), textureLimits)) {
-        textureImage = GLUtil.resizeTextureIfNeeded(textureImage, textureLimits.maxTextureSize);
+    final long generation = ++textureGeneration;
+    TextureCache.getInstance().acquire(new File(texturesDir + textureName + ".png")).thenAccept(texture -> {
+      if (texture != null) {
+        lx.engine.addTask(() -> setTexture(generation, texture));
       }
-    }
+    });
+  }
 
-    CkVShader.glDrawable.getContext().makeCurrent();
-    
-    // Clean up old texture to prevent memory leaks
-    if (glTexture != null) {
-      LX.log("Cleaning up old texture");
-      glTexture.destroy(gl);
-      GLUtil.checkGLError(gl, "texture cleanup");
+  private void setTexture(long generation, com.jogamp.opengl.util.texture.Texture texture) {
+    if (disposed || generation != textureGeneration) {
+      releaseTexture(texture);
+      return;
     }
-    
-    if (textureImage != null) {
-      glTexture = AWTTextureIO.newTexture(CkVShader.glDrawable.getGLProfile(), textureImage, false);
-      GLUtil.checkGLError(gl, "texture creation");
-      
-      // Record texture creation for monitoring
-      int bytesPerPixel = textureImage.getColorModel().hasAlpha() ? 4 : 3;
-      GLUtil.TextureMonitor.recordTextureCreation(textureImage.getWidth(), textureImage.getHeight(), bytesPerPixel);
+    // The new texture was acquired before the old one is released, so reloading the same image
+    // reuses it.
+    com.jogamp.opengl.util.texture.Texture previous = glTexture;
+    glTexture = texture;
+    if (previous != null) {
+      releaseTexture(previous);
     }
+  }
 
-    if (glTexture != null && gl != null) {
-      // Set texture parameters for sampling
-      glTexture.bind(gl);
-      GLUtil.checkGLError(gl, "texture bind");
-      
-      gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MAG_FILTER, GL.GL_NEAREST);
-      gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MIN_FILTER, GL.GL_NEAREST);
-      gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_WRAP_S, GL.GL_REPEAT);
-      gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_WRAP_T, GL.GL_REPEAT);
-      GLUtil.checkGLError(gl, "texture parameter setting");
-    }
-    CkVShader.glDrawable.getContext().release();
+  /**
+   * Give a texture back to the cache on the GL worker, after any draws already queued there.
+   */
+  private void releaseTexture(com.jogamp.opengl.util.texture.Texture texture) {
+    GLWorker.getInstance().execute(() -> {
+      TextureCache.getInstance().release(GLWorker.getGL(), texture);
+      // Textures loaded later may reuse its ID.
+      engine.invalidate();
+    });
   }
 
 
@@ -523,83 +158,17 @@ public class CkVShaderTex extends LXPattern implements UIDeviceControls<CkVShade
     if (obj.has(LXComponent.KEY_PARAMETERS)) {
       JsonObject params = obj.getAsJsonObject(LXComponent.KEY_PARAMETERS);
       if (params.has("scriptName")) {
+        updateSlidersNow = true;
         this.scriptName.setValue(params.get("scriptName").getAsString());
+        updateSlidersNow = false;
       }
     }
     super.load(lx, obj);
   }
 
-  /**
-   * Run once per frame.  Copy the vertex data to the OpenGL buffer.
-   * Tell OpenGL which buffer to use as the transform feedback buffer.
-   * GL_RASTERIZER_DISCARD tells OpenGL to stop the pipeline after the vertex shader.
-   *
-   * @param deltaMs
-   */
-  public void glRun(double deltaMs) {
-    totalTime += deltaMs/1000.0;
-    CkVShader.glDrawable.getContext().makeCurrent();
-    updateAudioTexture();
-    updateLedPositions();
-
-    gl.glBindBuffer(GL_ARRAY_BUFFER, bufferNames.get(Buffer.VERTEX));
-    gl.glBufferData(GL_ARRAY_BUFFER, vertexBuffer.capacity() * Float.BYTES, vertexBuffer, GL_STATIC_DRAW);
-    int inputAttrib = gl.glGetAttribLocation(shaderProgramId, "position");
-    gl.glEnableVertexAttribArray(inputAttrib);
-    gl.glVertexAttribPointer(inputAttrib, 3, GL_FLOAT, false, 0, 0);
-
-    gl.glBindBuffer(GL_ARRAY_BUFFER, bufferNames.get(Buffer.TBO));
-    gl.glBufferData(GL_ARRAY_BUFFER, tfbBuffer.capacity() * Float.BYTES, tfbBuffer, GL_STATIC_READ);
-    gl.glBindBufferBase(GL_TRANSFORM_FEEDBACK_BUFFER, 0, bufferNames.get(Buffer.TBO));
-
-    gl.glEnable(GL_RASTERIZER_DISCARD);
-    gl.glUseProgram(shaderProgramId);
-
-    gl.glUniform1f(fTimeLoc, speed.getValuef() * (float)totalTime);
-    for (String paramName : scriptParams.keySet()) {
-      gl.glUniform1f(paramLocations.get(paramName), scriptParams.get(paramName).getValuef());
-    }
-    if (glTexture != null && textureLoc >= 0) {
-      if (GLUtil.validateTextureUnitUsage(0, textureLimits)) {
-        gl.glActiveTexture(GL_TEXTURE0);
-        glTexture.enable(gl);
-        glTexture.bind(gl);
-        gl.glUniform1i(textureLoc, 0); // 0 is the texture unit
-        GLUtil.checkGLError(gl, "main texture binding");
-      }
-    }
-    if (audioTextureHandle[0] > 0 && fftTextureLoc >= 0) {
-      if (GLUtil.validateTextureUnitUsage(1, textureLimits)) {
-        gl.glActiveTexture(GL_TEXTURE1);
-        gl.glBindTexture(GL_TEXTURE_2D, audioTextureHandle[0]);
-        gl.glUniform1i(fftTextureLoc, 1);
-        GLUtil.checkGLError(gl, "audio texture binding");
-      }
-    }
-
-    gl.glBeginTransformFeedback(GL_POINTS);
-    {
-      gl.glDrawArrays(GL_POINTS, 0, model.points.length);
-    }
-    gl.glEndTransformFeedback();
-    gl.glFlush();
-
-    gl.glGetBufferSubData(GL_TRANSFORM_FEEDBACK_BUFFER, 0, tfbBuffer.capacity() * Float.BYTES, tfbBuffer);
-
-    gl.glUseProgram(0);
-    gl.glDisable(GL_RASTERIZER_DISCARD);
-
-    // For manually checking the first few output values in the transform feedback buffer.
-    for (int i = 0; i < 21; i++) {
-      //System.out.print(tfbBuffer.get(i) + ",");
-    }
-    //System.out.println();
-
-    CkVShader.glDrawable.getContext().release();
-  }
-
   @Override
   public void onParameterChanged(LXParameter p) {
+    engine.onParameterChanged(p);
     if (p == this.scriptName) {
       LX.log("scriptName parameter changed!");
       reloadShader(((StringParameter)p).getString());
@@ -613,71 +182,24 @@ public class CkVShaderTex extends LXPattern implements UIDeviceControls<CkVShade
   @Override
   public void onActive() {
     super.onActive();
-    totalTime = 0f;
-  }
-
-  private void clearSliders() {
-    for (String key : scriptParams.keySet()) {
-      removeParameter(key);
-    }
-    scriptParams.clear();
+    engine.resetTime();
   }
 
   @Override
   public void dispose() {
-    // Clean up texture resources
-    if (gl != null) {
-      CkVShader.glDrawable.getContext().makeCurrent();
-      
-      if (glTexture != null) {
-        LX.log("Disposing main texture");
-        glTexture.destroy(gl);
-        glTexture = null;
-      }
-      
-      if (audioTextureHandle[0] > 0) {
-        LX.log("Disposing audio texture");
-        gl.glDeleteTextures(1, audioTextureHandle, 0);
-        audioTextureHandle[0] = 0;
-      }
-      
-      if (shaderProgramId != -1) {
-        LX.log("Disposing shader program");
-        gl.glDeleteProgram(shaderProgramId);
-        shaderProgramId = -1;
-      }
-      
-      GLUtil.checkGLError(gl, "resource disposal");
-      CkVShader.glDrawable.getContext().release();
+    engine.dispose();
+    disposed = true;
+    // Nothing uses the texture any more, so free it on the GL thread without waiting.
+    if (glTexture != null) {
+      releaseTexture(glTexture);
+      glTexture = null;
     }
-    
+
     super.dispose();
   }
 
   public void run(double deltaMs) {
-    glRun(deltaMs);
-    LXPoint[] points = model.points;
-    // TODO(tracy): At some low brightness threshold, we should introduce alpha transparency.
-    // The alpha level should be scaled from 1 to 0 based on the range from 0 to threshold.
-    // Hardcoding the threshold for now since it is some complicated UI work to fit it into
-    // the dynamic parameter system.
-    float threshold = alphaThresh.getValuef();
-    for (int i = 0; i < points.length; i++) {
-      float red = tfbBuffer.get(i*3);
-      float green = tfbBuffer.get(i*3 + 1);
-      float blue = tfbBuffer.get(i*3 + 2);
-      int color = LXColor.rgbf(red, green, blue);
-      float bright = LXColor.luminosity(color)/100f;
-      if (bright < threshold) {
-        float alpha = (bright/threshold);
-        colors[points[i].index] = LXColor.rgba(LXColor.red(color),
-          LXColor.green(color),
-          LXColor.blue(color),
-          (int)(255f * alpha));
-      } else {
-        colors[points[i].index] = color;
-      }
-    }
+    engine.run(deltaMs, colors);
   }
 
   @Override
@@ -781,7 +303,7 @@ public class CkVShaderTex extends LXPattern implements UIDeviceControls<CkVShade
       .setDescription("Force reload shader (bypass cache)")
       .addToContainer(uiDevice);
 
-    if (GLUtil.CACHING_ENABLED) {  
+    if (GLUtil.isCachingEnabled()) {  
       final UIButton clearCacheButton = (UIButton) new UIButton(141, 22, 18, 18) {
         @Override
         public void onToggle(boolean on) {
@@ -805,15 +327,13 @@ public class CkVShaderTex extends LXPattern implements UIDeviceControls<CkVShade
           lx.engine.addTask(() -> {
             LX.log("=== Texture Statistics ===");
             LX.log(GLUtil.TextureMonitor.getStats());
-            if (textureLimits != null) {
-              LX.log("Hardware Limits: " + textureLimits.toString());
-            }
-            if (gl != null) {
-              CkVShader.glDrawable.getContext().makeCurrent();
+            LX.log(TextureCache.getInstance().getStats());
+            GLWorker.getInstance().execute(() -> {
+              GL3 gl = GLWorker.getGL();
+              LX.log("Hardware Limits: " + GLUtil.queryTextureLimits(gl).toString());
               GLUtil.logTextureBindingState(gl);
-              CkVShader.glDrawable.getContext().release();
-            }
-            LX.log("========================");
+              LX.log("========================");
+            });
           });
         }
       }
@@ -840,11 +360,11 @@ public class CkVShaderTex extends LXPattern implements UIDeviceControls<CkVShade
       sliders.removeAllChildren();
       // Only add built-in sliders if they're not already present as ISF parameters
       if (!pattern.scriptParams.containsKey("alfTh")) {
-        new UISlider(UISlider.Direction.VERTICAL, 40, sliders.getContentHeight() - 14, alphaThresh)
+        new UISlider(UISlider.Direction.VERTICAL, 40, sliders.getContentHeight() - 14, engine.alphaThresh)
           .addToContainer(sliders);
       }
       if (!pattern.scriptParams.containsKey("speed")) {
-        new UISlider(UISlider.Direction.VERTICAL, 40, sliders.getContentHeight() - 14, speed)
+        new UISlider(UISlider.Direction.VERTICAL, 40, sliders.getContentHeight() - 14, engine.speed)
           .addToContainer(sliders);
       }
       for (CompoundParameter slider : pattern.scriptParams.values()) {
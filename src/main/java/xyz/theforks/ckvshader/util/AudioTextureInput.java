@@ -0,0 +1,81 @@
+package xyz.theforks.ckvshader.util;
+
+import com.jogamp.opengl.GL3;
+import heronarts.lx.LX;
+
+import static com.jogamp.opengl.GL.GL_TEXTURE0;
+import static com.jogamp.opengl.GL.GL_TEXTURE_2D;
+
+/**
+ * Binds the shared {@link AudioTextureService} texture to the audioTexture sampler.  The texture
+ * is only referenced for shaders that declare the sampler.
+ */
+public class AudioTextureInput implements TransformFeedbackEngine.InputProvider {
+
+  public static final String UNIFORM = "audioTexture";
+
+  private final AudioTextureService service;
+  private final int unit;
+  private int textureId = 0;
+  private int location = -1;
+
+  /**
+   * @param unit Texture unit the sampler reads from.
+   */
+  public AudioTextureInput(LX lx, int unit) {
+    this.service = AudioTextureService.getInstance(lx);
+    this.unit = unit;
+  }
+
+  @Override
+  public void locate(GL3 gl, int programId) {
+    location = gl.glGetUniformLocation(programId, UNIFORM);
+    if (location >= 0 && !GLUtil.validateTextureUnitUsage(unit, GLUtil.queryTextureLimits(gl))) {
+      location = -1;
+    }
+    if (location < 0) {
+      // Only shaders using the sampler keep the shared texture alive.
+      if (textureId > 0) {
+        service.release(gl);
+        textureId = 0;
+      }
+      return;
+    }
+    gl.glUniform1i(location, unit);
+    LX.log("Found audioTexture at location: " + location);
+    if (textureId == 0) {
+      textureId = service.acquire(gl);
+    }
+  }
+
+  @Override
+  public void update(GL3 gl) {
+    if (location >= 0 && textureId > 0) {
+      service.update(gl);
+    }
+  }
+
+  @Override
+  public void addTo(InputFingerprint inputs) {
+    if (location >= 0 && textureId > 0) {
+      inputs.add(service.getContentVersion());
+    }
+  }
+
+  @Override
+  public void bind(GL3 gl) {
+    if (location >= 0 && textureId > 0) {
+      gl.glActiveTexture(GL_TEXTURE0 + unit);
+      gl.glBindTexture(GL_TEXTURE_2D, textureId);
+      GLUtil.checkGLError(gl, "audio texture binding");
+    }
+  }
+
+  @Override
+  public void dispose(GL3 gl) {
+    if (textureId > 0) {
+      service.release(gl);
+      textureId = 0;
+    }
+  }
+}
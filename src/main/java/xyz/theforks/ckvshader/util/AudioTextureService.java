@@ -0,0 +1,163 @@
+package xyz.theforks.ckvshader.util;
+
+import com.jogamp.opengl.GL;
+import com.jogamp.opengl.GL3;
+import heronarts.lx.LX;
+import heronarts.lx.LXLoopTask;
+import heronarts.lx.audio.GraphicMeter;
+
+import java.nio.ByteBuffer;
+
+import static com.jogamp.opengl.GL.GL_TEXTURE_2D;
+import static com.jogamp.opengl.GL.GL_UNSIGNED_BYTE;
+import static com.jogamp.opengl.GL2ES2.GL_RED;
+import static com.jogamp.opengl.GL2ES3.GL_R8;
+
+/**
+ * The audio meter's bands as one 512x2 single channel texture shared by every shader pattern
+ * that declares an audio sampler.  The meter is sampled once per engine frame on the engine
+ * thread, and the first pattern to draw after that uploads it into the texture's immutable
+ * storage, so the others just bind it.
+ *
+ * The texture is created by the first user and deleted when the last one releases it.  The
+ * methods taking a GL3 must be called on the GL thread with the context current.
+ */
+public class AudioTextureService implements LXLoopTask {
+
+  public static final int WIDTH = 512;
+  public static final int HEIGHT = 2;
+
+  private static AudioTextureService instance;
+
+  private final LX lx;
+  private final int[] handle = {0};
+  private int refs = 0;
+
+  // Written by the engine thread, copied to the upload buffer on the GL thread.
+  private final byte[] sampled = new byte[WIDTH * HEIGHT];
+  // Incremented only when a byte of the sample actually changes.
+  private long sampledVersion = 0;
+  private final ByteBuffer upload = ByteBuffer.allocateDirect(WIDTH * HEIGHT);
+  private long uploadedVersion = -1;
+
+  public static synchronized AudioTextureService getInstance(LX lx) {
+    if (instance == null) {
+      instance = new AudioTextureService(lx);
+      lx.engine.addLoopTask(instance);
+    }
+    return instance;
+  }
+
+  private AudioTextureService(LX lx) {
+    this.lx = lx;
+  }
+
+  /**
+   * Sample the meter for this frame.  Nothing is done while no shader uses the texture.
+   */
+  @Override
+  public void loop(double deltaMs) {
+    synchronized (this) {
+      if (refs <= 0) {
+        return;
+      }
+    }
+    GraphicMeter eq = lx.engine.audio.meter;
+    synchronized (sampled) {
+      // Only the even texels hold a band, the odd ones stay 0.  Shaders are written against this
+      // layout, which is what the patterns uploaded before the texture was shared.
+      boolean changed = false;
+      for (int i = 0; i < sampled.length; i += 2) {
+        int bandVal = (int)(eq.getBandf(i % 16) * 255.0);
+        if (sampled[i] != (byte)(bandVal)) {
+          sampled[i] = (byte)(bandVal);
+          changed = true;
+        }
+      }
+      if (changed) {
+        sampledVersion++;
+      }
+    }
+  }
+
+  /**
+   * Take a reference to the texture, creating it if this is the first user.
+   *
+   * @return The texture ID, or 0 if it couldn't be created.
+   */
+  public synchronized int acquire(GL3 gl) {
+    if (handle[0] == 0) {
+      gl.glGenTextures(1, handle, 0);
+      GLUtil.checkGLError(gl, "audio texture generation");
+      gl.glBindTexture(GL_TEXTURE_2D, handle[0]);
+      if (GLUtil.hasTextureStorage(gl)) {
+        gl.glTexStorage2D(GL_TEXTURE_2D, 1, GL_R8, WIDTH, HEIGHT);
+      } else {
+        // Allocated once like immutable storage, only the contents are updated afterwards.
+        gl.glTexImage2D(GL_TEXTURE_2D, 0, GL_R8, WIDTH, HEIGHT, 0, GL_RED, GL_UNSIGNED_BYTE, null);
+      }
+      gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MAG_FILTER, GL.GL_NEAREST);
+      gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MIN_FILTER, GL.GL_NEAREST);
+      gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_WRAP_S, GL.GL_MIRRORED_REPEAT);
+      gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_WRAP_T, GL.GL_MIRRORED_REPEAT);
+      if (GLUtil.checkGLError(gl, "audio texture storage")) {
+        gl.glDeleteTextures(1, handle, 0);
+        handle[0] = 0;
+        return 0;
+      }
+      uploadedVersion = -1;
+      LX.log("Created shared audio texture with handle: " + handle[0]);
+    }
+    refs++;
+    return handle[0];
+  }
+
+  /**
+   * Give up a reference taken with {@link #acquire}, deleting the texture with its last user.
+   */
+  public synchronized void release(GL3 gl) {
+    if (refs <= 0 || --refs > 0) {
+      return;
+    }
+    if (handle[0] > 0) {
+      LX.log("Disposing shared audio texture");
+      gl.glDeleteTextures(1, handle, 0);
+      handle[0] = 0;
+    }
+  }
+
+  /**
+   * Upload the latest sample if it hasn't been uploaded yet.  Only the first call per frame
+   * does any work.
+   */
+  public synchronized void update(GL3 gl) {
+    if (handle[0] <= 0) {
+      return;
+    }
+    synchronized (sampled) {
+      if (sampledVersion == uploadedVersion) {
+        return;
+      }
+      upload.clear();
+      upload.put(sampled).flip();
+      uploadedVersion = sampledVersion;
+    }
+    gl.glBindTexture(GL_TEXTURE_2D, handle[0]);
+    gl.glTexSubImage2D(GL_TEXTURE_2D, 0, 0, 0, WIDTH, HEIGHT, GL_RED, GL_UNSIGNED_BYTE, upload);
+    GLUtil.checkGLError(gl, "audio texture data update");
+  }
+
+  /**
+   * Version of the current sample, for draw fingerprints.  Two frames have the same version only
+   * if every byte of their samples is the same.
+   */
+  public long getContentVersion() {
+    synchronized (sampled) {
+      return sampledVersion;
+    }
+  }
+
+  public int getTextureId() {
+    return handle[0];
+  }
+}
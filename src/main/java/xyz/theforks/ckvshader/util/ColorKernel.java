@@ -0,0 +1,165 @@
+package xyz.theforks.ckvshader.util;
+
+import heronarts.lx.color.LXColor;
+import heronarts.lx.model.LXPoint;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Converts the rgb float output of a transform feedback shader into ARGB colors, fading the
+ * alpha of points whose brightness is below the alfTh threshold.  This is the CPU path for
+ * shaders that don't have packed output.
+ *
+ * The floats are copied out of the direct buffer in bulk and converted in a tight loop over
+ * primitive arrays, which produces the same colors as LXColor.rgbf followed by the threshold on
+ * LXColor.luminosity, except that channels are clamped to 0-255.
+ *
+ * Conversion and the scatter to each point's index are done together in chunks by a
+ * {@link ParallelScatter}, so for million-point models the pass is spread over all cores.  The
+ * packed copy and the plain LXColor.rgbf copy used by GLUtil go through the same chunks.
+ */
+public class ColorKernel {
+
+  // Rec. 709 weights of LXColor.luminosity, also used by luminance.vti on the GPU.
+  private static final float LUMA_R = 0.2126f;
+  private static final float LUMA_G = 0.7152f;
+  private static final float LUMA_B = 0.0722f;
+
+  private final ParallelScatter scatter = new ParallelScatter();
+  private final ParallelScatter.Range convertRange = this::convertRange;
+  private final ParallelScatter.Range packedRange = this::packedRange;
+  private final ParallelScatter.Range rgbRange = this::rgbRange;
+
+  private float[] rgb = new float[0];
+  private int[] argb = new int[0];
+
+  // State of the pass being run, read by the chunks.
+  private LXPoint[] points;
+  private int[] colors;
+  private boolean inOrder;
+  private float threshold;
+  private IntBuffer packed;
+  private FloatBuffer buffer;
+  private LXColor.Blend blend;
+
+  /**
+   * Convert the output for points and write it to their colors.  Large point sets are converted
+   * and scattered in parallel chunks.
+   *
+   * @param buffer Interleaved r, g, b floats, one triple per point.
+   */
+  public void convert(FloatBuffer buffer, LXPoint[] points, int[] colors, float threshold) {
+    final int n = points.length;
+    if (n == 0) return;
+    if (rgb.length < n * 3) {
+      rgb = new float[n * 3];
+      argb = new int[n];
+    }
+    buffer.rewind();
+    buffer.get(rgb, 0, n * 3);
+    buffer.rewind();
+    this.threshold = threshold;
+    scatter(points, colors, convertRange);
+  }
+
+  private void convertRange(int start, int end) {
+    if (inOrder) {
+      convert(rgb, colors, start, end, threshold);
+      return;
+    }
+    convert(rgb, argb, start, end, threshold);
+    final LXPoint[] points = this.points;
+    final int[] colors = this.colors;
+    for (int i = start; i < end; i++) {
+      colors[points[i].index] = argb[i];
+    }
+  }
+
+  /**
+   * Copy packed ARGB colors read back from the GPU into the colors of points.  The alpha
+   * threshold has already been applied in the shader so there is no per-point conversion.  When
+   * the points are the entire model in index order this is a single bulk copy, otherwise each
+   * color is scattered to its point's index.
+   */
+  public void copyPacked(IntBuffer packed, LXPoint[] points, int[] colors) {
+    final int n = points.length;
+    if (n == 0) return;
+    packed.rewind();
+    if (isInOrder(points, colors)) {
+      packed.get(colors, 0, n);
+    } else {
+      this.packed = packed;
+      scatter(points, colors, packedRange);
+      this.packed = null;
+    }
+    packed.rewind();
+  }
+
+  private void packedRange(int start, int end) {
+    final IntBuffer packed = this.packed;
+    final LXPoint[] points = this.points;
+    final int[] colors = this.colors;
+    for (int i = start; i < end; i++) {
+      colors[points[i].index] = packed.get(i);
+    }
+  }
+
+  /**
+   * Convert with LXColor.rgbf, without clamping or the alpha threshold, and write the result to
+   * the colors of points.  If blend is not null the result is blended over the existing colors.
+   */
+  public void copyRgb(FloatBuffer buffer, LXPoint[] points, int[] colors, LXColor.Blend blend) {
+    if (points.length == 0) return;
+    this.buffer = buffer;
+    this.blend = blend;
+    scatter(points, colors, rgbRange);
+    this.buffer = null;
+  }
+
+  private void rgbRange(int start, int end) {
+    final FloatBuffer buffer = this.buffer;
+    final LXPoint[] points = this.points;
+    final int[] colors = this.colors;
+    for (int i = start; i < end; i++) {
+      final int index = points[i].index;
+      final int color = LXColor.rgbf(buffer.get(i * 3), buffer.get(i * 3 + 1), buffer.get(i * 3 + 2));
+      colors[index] = blend == null ? color : LXColor.blend(colors[index], color, blend);
+    }
+  }
+
+  private void scatter(LXPoint[] points, int[] colors, ParallelScatter.Range range) {
+    this.points = points;
+    this.colors = colors;
+    this.inOrder = isInOrder(points, colors);
+    try {
+      scatter.run(points.length, range);
+    } finally {
+      this.points = null;
+      this.colors = null;
+    }
+  }
+
+  private static boolean isInOrder(LXPoint[] points, int[] colors) {
+    final int n = points.length;
+    return n == colors.length && points[0].index == 0 && points[n - 1].index == n - 1;
+  }
+
+  /**
+   * Convert the interleaved rgb triples of the points in [start, end) into argb.
+   */
+  static void convert(float[] rgb, int[] argb, int start, int end, float threshold) {
+    for (int i = start; i < end; i++) {
+      final int r = channel(rgb[i * 3]);
+      final int g = channel(rgb[i * 3 + 1]);
+      final int b = channel(rgb[i * 3 + 2]);
+      final float bright = (LUMA_R * r + LUMA_G * g + LUMA_B * b) / 255f;
+      final int a = bright < threshold ? (int) (255f * (bright / threshold)) : 255;
+      argb[i] = (a << 24) | (r << 16) | (g << 8) | b;
+    }
+  }
+
+  private static int channel(float v) {
+    return Math.max(0, Math.min(255, (int) (v * 255f)));
+  }
+}
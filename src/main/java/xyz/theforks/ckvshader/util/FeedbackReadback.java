@@ -0,0 +1,243 @@
+package xyz.theforks.ckvshader.util;
+
+import com.jogamp.opengl.GL3;
+
+import java.nio.Buffer;
+import java.util.Arrays;
+
+import static com.jogamp.opengl.GL.GL_ARRAY_BUFFER;
+import static com.jogamp.opengl.GL2ES3.GL_STATIC_READ;
+import static com.jogamp.opengl.GL2ES3.GL_TRANSFORM_FEEDBACK_BUFFER;
+import static com.jogamp.opengl.GL3ES3.GL_ALREADY_SIGNALED;
+import static com.jogamp.opengl.GL3ES3.GL_CONDITION_SATISFIED;
+import static com.jogamp.opengl.GL3ES3.GL_SYNC_FLUSH_COMMANDS_BIT;
+import static com.jogamp.opengl.GL3ES3.GL_SYNC_GPU_COMMANDS_COMPLETE;
+import static com.jogamp.opengl.GL4.GL_CLIENT_STORAGE_BIT;
+
+/**
+ * Ring of transform feedback buffers used as the destination of the vertex shader output.
+ *
+ * In synchronous mode the result of a frame is read back right after it is drawn, which blocks
+ * the calling thread until the GPU has finished.  In pipelined mode each draw is protected by a
+ * glFenceSync and the result is read from the newest buffer whose fence has already signaled,
+ * normally the previous frame's.  That trades one frame of latency for not waiting on the GPU.
+ * If every buffer in the ring is still in flight the oldest one is waited on so that latency is
+ * bounded by the ring size.
+ */
+public class FeedbackReadback {
+
+  public static final int DEFAULT_RING_SIZE = 3;
+
+  private final int ringSize;
+  private final int[] bufferIds;
+  private final long[] fences;
+  // Frame number that was drawn into each slot, -1 if the slot holds nothing unread.
+  private final long[] slotFrame;
+  private long allocatedBytes = -1;
+  private int writeSlot = 0;
+  private long frame = 0;
+  private boolean pipelined = false;
+
+  // Statistics
+  private long statFrames = 0;
+  private long statReads = 0;
+  private long statStallNanos = 0;
+  private long statLatencyFrames = 0;
+
+  public FeedbackReadback() {
+    this(DEFAULT_RING_SIZE);
+  }
+
+  public FeedbackReadback(int ringSize) {
+    this.ringSize = Math.max(2, ringSize);
+    this.bufferIds = new int[this.ringSize];
+    this.fences = new long[this.ringSize];
+    this.slotFrame = new long[this.ringSize];
+    Arrays.fill(slotFrame, -1);
+  }
+
+  /**
+   * Switch between synchronous and pipelined readback.  Takes effect on the next frame.
+   */
+  public void setPipelined(boolean pipelined) {
+    this.pipelined = pipelined;
+  }
+
+  public boolean isPipelined() {
+    return pipelined;
+  }
+
+  /**
+   * Prepare the buffer for this frame's draw and bind it as transform feedback binding 0.
+   * Storage is only (re)allocated when the requested size changes, using immutable storage when
+   * available.  Must be called with the GL context current.
+   */
+  public void begin(GL3 gl, long bytes) {
+    if (bufferIds[0] == 0) {
+      gl.glGenBuffers(ringSize, bufferIds, 0);
+    }
+    if (bytes != allocatedBytes) {
+      // Immutable storage can't be resized so it needs new buffers.
+      if (allocatedBytes >= 0 && GLUtil.hasBufferStorage(gl)) {
+        gl.glDeleteBuffers(ringSize, bufferIds, 0);
+        gl.glGenBuffers(ringSize, bufferIds, 0);
+      }
+      for (int i = 0; i < ringSize; i++) {
+        gl.glBindBuffer(GL_ARRAY_BUFFER, bufferIds[i]);
+        GLUtil.allocateBuffer(gl, GL_ARRAY_BUFFER, bytes, null, GL_STATIC_READ, GL_CLIENT_STORAGE_BIT);
+        discardSlot(gl, i);
+      }
+      allocatedBytes = bytes;
+    }
+    // Any unread result still sitting in this slot is superseded by newer frames.
+    discardSlot(gl, writeSlot);
+    gl.glBindBufferBase(GL_TRANSFORM_FEEDBACK_BUFFER, 0, bufferIds[writeSlot]);
+  }
+
+  /**
+   * Finish this frame's draw and copy a result into dest.  In synchronous mode this is always
+   * the frame that was just drawn.  In pipelined mode it is the newest completed frame, or
+   * nothing if no new frame has completed yet, in which case dest keeps its previous contents.
+   * dest must hold at least the number of bytes passed to {@link #begin(GL3, long)}.
+   *
+   * @return true if dest was updated.
+   */
+  public boolean end(GL3 gl, Buffer dest) {
+    final long drawnFrame = frame++;
+    statFrames++;
+    final int drawnSlot = writeSlot;
+    writeSlot = (writeSlot + 1) % ringSize;
+
+    if (!pipelined) {
+      long start = System.nanoTime();
+      gl.glFlush();
+      read(gl, drawnSlot, dest);
+      statStallNanos += System.nanoTime() - start;
+      statReads++;
+      return true;
+    }
+
+    fences[drawnSlot] = gl.glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+    slotFrame[drawnSlot] = drawnFrame;
+    gl.glFlush();
+
+    long start = System.nanoTime();
+    // Find the newest slot whose fence has signaled, and the oldest one still pending.
+    int newestReady = -1;
+    int oldestPending = -1;
+    int pendingCount = 0;
+    for (int i = 0; i < ringSize; i++) {
+      if (slotFrame[i] < 0) continue;
+      pendingCount++;
+      if (oldestPending < 0 || slotFrame[i] < slotFrame[oldestPending]) {
+        oldestPending = i;
+      }
+      if (isSignaled(gl, fences[i], 0)) {
+        if (newestReady < 0 || slotFrame[i] > slotFrame[newestReady]) {
+          newestReady = i;
+        }
+      }
+    }
+    // All buffers are in flight, wait on the oldest so we can reuse it next frame.
+    if (newestReady < 0 && pendingCount >= ringSize - 1 && oldestPending >= 0) {
+      isSignaled(gl, fences[oldestPending], Long.MAX_VALUE);
+      newestReady = oldestPending;
+    }
+    if (newestReady < 0) {
+      statStallNanos += System.nanoTime() - start;
+      return false;
+    }
+    statLatencyFrames += drawnFrame - slotFrame[newestReady];
+    read(gl, newestReady, dest);
+    // Anything older than what we just read is stale.
+    long readFrame = slotFrame[newestReady];
+    for (int i = 0; i < ringSize; i++) {
+      if (slotFrame[i] >= 0 && slotFrame[i] <= readFrame) {
+        discardSlot(gl, i);
+      }
+    }
+    statStallNanos += System.nanoTime() - start;
+    statReads++;
+    return true;
+  }
+
+  /**
+   * Copy the newest frame still in flight into dest, waiting for it if necessary, and discard
+   * any older ones.  Used on frames that reuse the previous output without drawing so a
+   * pipelined result is not left behind.  Makes no GL calls if nothing is pending, which is
+   * always the case in synchronous mode.
+   *
+   * @return true if dest was updated.
+   */
+  public boolean drain(GL3 gl, Buffer dest) {
+    int newest = -1;
+    for (int i = 0; i < ringSize; i++) {
+      if (slotFrame[i] >= 0 && (newest < 0 || slotFrame[i] > slotFrame[newest])) {
+        newest = i;
+      }
+    }
+    if (newest < 0) {
+      return false;
+    }
+    long start = System.nanoTime();
+    isSignaled(gl, fences[newest], Long.MAX_VALUE);
+    read(gl, newest, dest);
+    for (int i = 0; i < ringSize; i++) {
+      discardSlot(gl, i);
+    }
+    statStallNanos += System.nanoTime() - start;
+    statReads++;
+    return true;
+  }
+
+  private boolean isSignaled(GL3 gl, long fence, long timeoutNanos) {
+    if (fence == 0) return true;
+    int result = gl.glClientWaitSync(fence, timeoutNanos > 0 ? GL_SYNC_FLUSH_COMMANDS_BIT : 0, timeoutNanos);
+    return result == GL_ALREADY_SIGNALED || result == GL_CONDITION_SATISFIED;
+  }
+
+  private void read(GL3 gl, int slot, Buffer dest) {
+    gl.glBindBuffer(GL_TRANSFORM_FEEDBACK_BUFFER, bufferIds[slot]);
+    gl.glGetBufferSubData(GL_TRANSFORM_FEEDBACK_BUFFER, 0, allocatedBytes, dest);
+  }
+
+  private void discardSlot(GL3 gl, int slot) {
+    if (fences[slot] != 0) {
+      gl.glDeleteSync(fences[slot]);
+      fences[slot] = 0;
+    }
+    slotFrame[slot] = -1;
+  }
+
+  /**
+   * Average time the calling thread spent waiting on readback, and the average age in frames
+   * of the results that were consumed.
+   */
+  public String getStats() {
+    double stallMs = statFrames > 0 ? statStallNanos / 1e6 / statFrames : 0;
+    double latency = statReads > 0 ? (double) statLatencyFrames / statReads : 0;
+    return String.format("Readback (%s): %d frames, %d reads, %.3f ms avg stall, %.2f frames avg latency",
+      pipelined ? "pipelined" : "sync", statFrames, statReads, stallMs, latency);
+  }
+
+  public void resetStats() {
+    statFrames = 0;
+    statReads = 0;
+    statStallNanos = 0;
+    statLatencyFrames = 0;
+  }
+
+  /**
+   * Release the buffers and any outstanding fences.  Must be called with the GL context current.
+   */
+  public void dispose(GL3 gl) {
+    for (int i = 0; i < ringSize; i++) {
+      discardSlot(gl, i);
+    }
+    if (bufferIds[0] != 0) {
+      gl.glDeleteBuffers(ringSize, bufferIds, 0);
+      Arrays.fill(bufferIds, 0);
+    }
+    allocatedBytes = -1;
+  }
+}
@@ -0,0 +1,157 @@
+package xyz.theforks.ckvshader.util;
+
+import com.jogamp.opengl.GL3;
+import heronarts.lx.LX;
+import heronarts.lx.LXLoopTask;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.jogamp.opengl.GL3ES3.GL_SYNC_FLUSH_COMMANDS_BIT;
+import static com.jogamp.opengl.GL3ES3.GL_SYNC_GPU_COMMANDS_COMPLETE;
+import static com.jogamp.opengl.GL3ES3.GL_TIMEOUT_EXPIRED;
+
+/**
+ * Runs the GPU work of all batched shader patterns together once per engine frame.  Without it
+ * every pattern makes the shared context current, draws, waits for its own result and releases
+ * the context.  Here the whole batch runs as one job on the {@link GLWorker}, which already holds
+ * the context.  Every submitted pattern issues its draw back to back, there is a single wait
+ * for the GPU, and then all the results are read back.
+ *
+ * Patterns submit themselves from run() and consume whatever the most recent batch produced.
+ * The batch runs as a loop task, so what a pattern submits in one engine frame is drawn at the
+ * start of the next one, with the parameter values and time step of that frame, and read in its
+ * run() later in that frame.  The output is therefore one frame behind the submission, and a
+ * pattern that was not in the last batch has nothing to read yet, see {@link #drewInLastBatch}.
+ * A pattern that stops submitting, for example because its channel is no longer running it,
+ * simply drops out of the next batch.
+ */
+public class GLFrameScheduler implements LXLoopTask {
+
+  /**
+   * A pattern whose GPU work can be batched.  Both methods are called on the GL worker thread
+   * with the shared GL context current.
+   */
+  public interface Job {
+    /**
+     * Issue this frame's draw without waiting for it to complete.
+     */
+    void glDraw(GL3 gl, double deltaMs);
+
+    /**
+     * Copy the results of the draw back to the CPU.
+     */
+    void glReadback(GL3 gl);
+
+    /**
+     * Whether the readback expects the draw from this frame to be complete.  Pipelined jobs read
+     * an earlier frame and don't need the batch to wait for the GPU.
+     */
+    default boolean waitsForResult() {
+      return true;
+    }
+  }
+
+  private static GLFrameScheduler instance;
+
+  // Jobs submitted since the last batch.  Channels may run on their own threads so access is
+  // synchronized.
+  private final Set<Job> submitted = new LinkedHashSet<>();
+  private final List<Job> batch = new ArrayList<>();
+  // Jobs drawn by the most recent batch, guarded by submitted.
+  private final Set<Job> lastBatch = new HashSet<>();
+
+  public static synchronized GLFrameScheduler getInstance(LX lx) {
+    if (instance == null) {
+      instance = new GLFrameScheduler();
+      lx.engine.addLoopTask(instance);
+    }
+    return instance;
+  }
+
+  private GLFrameScheduler() {
+  }
+
+  /**
+   * Include the job in the next batch.  Submitting the same job more than once per frame has
+   * no further effect.
+   */
+  public void submit(Job job) {
+    synchronized (submitted) {
+      submitted.add(job);
+    }
+  }
+
+  /**
+   * Drop a job from the next batch, for example when it is disposed or switched back to running
+   * on its own.
+   */
+  public void remove(Job job) {
+    synchronized (submitted) {
+      submitted.remove(job);
+      lastBatch.remove(job);
+    }
+  }
+
+  /**
+   * Whether the job was drawn by the batch that ran at the start of this frame.  If not, for
+   * example on its first batched frame, its output is empty or stale and it should draw on its own.
+   */
+  public boolean drewInLastBatch(Job job) {
+    synchronized (submitted) {
+      return lastBatch.contains(job);
+    }
+  }
+
+  @Override
+  public void loop(double deltaMs) {
+    batch.clear();
+    synchronized (submitted) {
+      batch.addAll(submitted);
+      submitted.clear();
+      lastBatch.clear();
+      lastBatch.addAll(batch);
+    }
+    if (batch.isEmpty()) {
+      return;
+    }
+
+    GLWorker.getInstance().invokeAndWait(() -> runBatch(deltaMs));
+  }
+
+  private void runBatch(double deltaMs) {
+    GL3 gl = GLWorker.getGL();
+    boolean wait = false;
+    for (Job job : batch) {
+      try {
+        job.glDraw(gl, deltaMs);
+        wait |= job.waitsForResult();
+      } catch (Exception e) {
+        LX.log("Error drawing batched shader: " + e.getMessage());
+      }
+    }
+
+    // One sync point for the whole batch, after which each readback returns without stalling.
+    if (wait) {
+      long fence = gl.glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+      int flags = GL_SYNC_FLUSH_COMMANDS_BIT;
+      while (gl.glClientWaitSync(fence, flags, 1000000000L) == GL_TIMEOUT_EXPIRED) {
+        flags = 0;
+      }
+      gl.glDeleteSync(fence);
+    } else {
+      gl.glFlush();
+    }
+
+    for (Job job : batch) {
+      try {
+        job.glReadback(gl);
+      } catch (Exception e) {
+        LX.log("Error reading back batched shader: " + e.getMessage());
+      }
+    }
+  }
+}
@@ -1,6 +1,7 @@
 package xyz.theforks.ckvshader.util;
 
 import xyz.theforks.ckvshader.patterns.CkVShader;
+import com.jogamp.common.util.VersionNumber;
 import com.jogamp.opengl.GL;
 import com.jogamp.opengl.GL3;
 import com.jogamp.opengl.util.GLBuffers;
@@ -13,11 +14,13 @@ import heronarts.lx.model.LXPoint;
 import java.awt.image.BufferedImage;
 
 import java.io.*;
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.*;
 
@@ -32,7 +35,20 @@ import com.jogamp.opengl.GL2ES3;
 
 public class GLUtil {
   
-  public static final boolean CACHING_ENABLED = false;
+  // Whether compiled shaders are cached as program binaries, see ShaderCache.  On unless the
+  // ckvshader.cache system property is false.
+  private static volatile boolean cachingEnabled = !"false".equalsIgnoreCase(System.getProperty("ckvshader.cache"));
+
+  static public boolean isCachingEnabled() {
+    return cachingEnabled;
+  }
+
+  /**
+   * Turn the shader binary cache on or off at runtime.  Affects shaders loaded afterwards.
+   */
+  static public void setCachingEnabled(boolean enabled) {
+    cachingEnabled = enabled;
+  }
 
   /**
    * Result container for shader loading with dependency tracking
@@ -64,7 +80,7 @@ public class GLUtil {
     // Staging buffer for vertex data to be copied to the VBO on the GPU
     public FloatBuffer vertexBuffer;
     // Stores the buffer IDs for the buffer IDs allocated on the GPU.
-    static public IntBuffer bufferNames = GLBuffers.newDirectIntBuffer(Buffer.MAX);
+    public final IntBuffer bufferNames = GLBuffers.newDirectIntBuffer(Buffer.MAX);
     // The shader's ID on the GPU.
 
     public int shaderProgramId = -1;
@@ -74,6 +90,8 @@ public class GLUtil {
     public double totalTime;
     public Map<String, Integer> paramLocations = new HashMap<String, Integer>();
     public LinkedHashMap<String, Float> scriptParams = new LinkedHashMap<String, Float>();
+    // Copies tfbBuffer into the colors, in parallel for large models.
+    public final ColorKernel colorKernel = new ColorKernel();
 
     public LX lx;
   }
@@ -114,7 +132,7 @@ public class GLUtil {
     // the vertex data in that scenario to match it up after the transform feedback.
     vsGLContext.tfbBuffer = GLBuffers.newDirectFloatBuffer(vsGLContext.vertexBuffer.capacity());
 
-    gl.glGenBuffers(VSGLContext.Buffer.MAX, VSGLContext.bufferNames);
+    gl.glGenBuffers(VSGLContext.Buffer.MAX, vsGLContext.bufferNames);
 
     if (glTexture != null) {
       vsGLContext.glTexture = glTexture;
@@ -180,15 +198,15 @@ public class GLUtil {
       vsGLCtx.totalTime += deltaMs / 1000.0;
 
     vsGLCtx.gl.getContext().makeCurrent();
-    vsGLCtx.gl.glBindBuffer(GL_ARRAY_BUFFER, VSGLContext.bufferNames.get(VSGLContext.Buffer.VERTEX));
+    vsGLCtx.gl.glBindBuffer(GL_ARRAY_BUFFER, vsGLCtx.bufferNames.get(VSGLContext.Buffer.VERTEX));
     vsGLCtx.gl.glBufferData(GL_ARRAY_BUFFER, vsGLCtx.vertexBuffer.capacity() * Float.BYTES, vsGLCtx.vertexBuffer, GL_STATIC_DRAW);
     int inputAttrib = vsGLCtx.gl.glGetAttribLocation(vsGLCtx.shaderProgramId, "position");
     vsGLCtx.gl.glEnableVertexAttribArray(inputAttrib);
     vsGLCtx.gl.glVertexAttribPointer(inputAttrib, 3, GL_FLOAT, false, 0, 0);
 
-    vsGLCtx.gl.glBindBuffer(GL_ARRAY_BUFFER, VSGLContext.bufferNames.get(VSGLContext.Buffer.TBO));
+    vsGLCtx.gl.glBindBuffer(GL_ARRAY_BUFFER, vsGLCtx.bufferNames.get(VSGLContext.Buffer.TBO));
     vsGLCtx.gl.glBufferData(GL_ARRAY_BUFFER, vsGLCtx.tfbBuffer.capacity() * Float.BYTES, vsGLCtx.tfbBuffer, GL_STATIC_READ);
-    vsGLCtx.gl.glBindBufferBase(GL_TRANSFORM_FEEDBACK_BUFFER, 0, VSGLContext.bufferNames.get(VSGLContext.Buffer.TBO));
+    vsGLCtx.gl.glBindBufferBase(GL_TRANSFORM_FEEDBACK_BUFFER, 0, vsGLCtx.bufferNames.get(VSGLContext.Buffer.TBO));
 
     vsGLCtx.gl.glEnable(GL_RASTERIZER_DISCARD);
     vsGLCtx.gl.glUseProgram(vsGLCtx.shaderProgramId);
@@ -221,21 +239,103 @@ public class GLUtil {
   }
 
   static public void copyTFBufferToPoints(LX lx, int[] colors, VSGLContext vsGLCtx) {
-    for (int i = 0; i < lx.getModel().points.length; i++) {
-      colors[lx.getModel().points[i].index] = LXColor.rgbf(vsGLCtx.tfbBuffer.get(i * 3),
-        vsGLCtx.tfbBuffer.get(i * 3 + 1),
-        vsGLCtx.tfbBuffer.get(i * 3 + 2));
-    }
+    vsGLCtx.colorKernel.copyRgb(vsGLCtx.tfbBuffer, lx.getModel().points, colors, null);
   }
 
   static public void copyTFBufferToPoints(LX lx, int[] colors, VSGLContext vsGLCtx, LXColor.Blend blend) {
-    vsGLCtx.gl.getContext().makeCurrent();
-    for (int i = 0; i < lx.getModel().points.length; i++) {
-      colors[lx.getModel().points[i].index] = LXColor.blend(colors[lx.getModel().points[i].index],
-        LXColor.rgbf(vsGLCtx.tfbBuffer.get(i * 3), vsGLCtx.tfbBuffer.get(i * 3 + 1), vsGLCtx.tfbBuffer.get(i * 3 + 2)),
-        blend);
+    vsGLCtx.colorKernel.copyRgb(vsGLCtx.tfbBuffer, lx.getModel().points, colors, blend);
+  }
+
+  /**
+   * Uniform that receives the pattern's alfTh value when a shader uses the packed output
+   * contract.  See packColor.vti.
+   */
+  static public final String ALPHA_THRESHOLD_UNIFORM = "fAlphaThresh";
+
+  /**
+   * Returns true if the linked program writes outColor as a single packed ARGB uint rather than
+   * a vec3.  The program itself is queried so this also works for programs loaded from the
+   * shader cache where we don't have the source.
+   */
+  static public boolean isPackedOutput(GL3 gl, int programId) {
+    int[] length = new int[1];
+    int[] size = new int[1];
+    int[] type = new int[1];
+    byte[] name = new byte[64];
+    gl.glGetTransformFeedbackVarying(programId, 0, name.length, length, 0, size, 0, type, 0, name, 0);
+    return type[0] == GL_UNSIGNED_INT;
+  }
+
+  /**
+   * Transform feedback varying written by the epilogue that {@link #injectColorEpilogue(String)}
+   * adds to shaders with a vec3 outColor.
+   */
+  static public final String PACKED_COLOR_VARYING = "outColorPacked";
+
+  private static final Pattern FLOAT_COLOR_OUTPUT =
+    Pattern.compile("(?:\\b(?:flat|smooth|noperspective)\\s+)?\\bout\\s+vec3\\s+outColor\\s*;");
+  private static final Pattern MAIN_FUNCTION = Pattern.compile("\\bvoid\\s+main\\s*\\(\\s*(?:void\\s*)?\\)");
+  private static final Pattern ALPHA_THRESHOLD_DECLARATION =
+    Pattern.compile("\\buniform\\s+float\\s+" + ALPHA_THRESHOLD_UNIFORM + "\\s*;");
+
+  // The brightness function shared with packColor.vti, so both fade the same points.
+  private static final String LUMINANCE_SNIPPET = loadResource("data/shaders/luminance.vti");
+
+  // Packs the shader's vec3 outColor the same way the patterns do on the CPU: LXColor.rgbf
+  // followed by an alpha fade below the threshold on the luminosity.
+  private static final String COLOR_EPILOGUE =
+    "\n// Added by CkVShader: pack outColor to ARGB with the alpha threshold applied.\n" +
+    LUMINANCE_SNIPPET +
+    "flat out uint " + PACKED_COLOR_VARYING + ";\n" +
+    "void main() {\n" +
+    "  ckv_main();\n" +
+    "  uvec3 c = uvec3(clamp(outColor, 0.0, 1.0) * 255.0);\n" +
+    "  float bright = ckvLuminance(c);\n" +
+    "  uint a = bright < " + ALPHA_THRESHOLD_UNIFORM + " ? uint(255.0 * bright / " + ALPHA_THRESHOLD_UNIFORM + ") : 255u;\n" +
+    "  " + PACKED_COLOR_VARYING + " = (a << 24u) | (c.r << 16u) | (c.g << 8u) | c.b;\n" +
+    "}\n";
+
+  private static String loadResource(String path) {
+    try (InputStream in = GLUtil.class.getClassLoader().getResourceAsStream(path)) {
+      if (in == null) {
+        throw new IllegalStateException("Missing resource: " + path);
+      }
+      return new String(in.readAllBytes(), java.nio.charset.StandardCharsets.UTF_8);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
     }
-    vsGLCtx.gl.getContext().release();
+  }
+
+  /**
+   * Rewrite a shader that writes a vec3 outColor so that it also outputs the final packed ARGB
+   * color, with the alfTh alpha threshold computed on the GPU.  The shader's main() is renamed,
+   * outColor becomes a plain global, and a new main() calls the original and packs its result
+   * into {@link #PACKED_COLOR_VARYING}.  Shaders that already use packed output, or don't have
+   * the usual outColor and main() declarations, are returned unchanged.
+   */
+  static public String injectColorEpilogue(String source) {
+    if (source == null || source.contains(PACKED_COLOR_VARYING)) {
+      return source;
+    }
+    Matcher output = FLOAT_COLOR_OUTPUT.matcher(source);
+    if (!output.find() || !MAIN_FUNCTION.matcher(source).find()) {
+      return source;
+    }
+    String result = output.replaceFirst("vec3 outColor;");
+    result = MAIN_FUNCTION.matcher(result).replaceFirst("void ckv_main()");
+    if (!ALPHA_THRESHOLD_DECLARATION.matcher(result).find()) {
+      // Declared right after outColor so it comes after the #version line.
+      result = result.replaceFirst("vec3 outColor;", "vec3 outColor;\nuniform float " + ALPHA_THRESHOLD_UNIFORM + ";");
+    }
+    return result + COLOR_EPILOGUE;
+  }
+
+  /**
+   * The transform feedback varying to capture for a shader source, after any epilogue has been
+   * injected.
+   */
+  static public String colorVarying(String source) {
+    return source != null && source.contains(PACKED_COLOR_VARYING) ? PACKED_COLOR_VARYING : "outColor";
   }
 
   //
@@ -701,10 +801,42 @@ public class GLUtil {
       LX.log("GL_MAX_ARRAY_TEXTURE_LAYERS not available, using fallback: " + maxArrayTextureLayers);
     }
     
-    return new TextureLimits(maxTextureUnits, maxCombinedTextureUnits, maxTextureSize, 
+    return new TextureLimits(maxTextureUnits, maxCombinedTextureUnits, maxTextureSize,
                            max3DTextureSize, maxArrayTextureLayers);
   }
 
+  /**
+   * True if the context supports immutable buffer storage (GL 4.4 or ARB_buffer_storage).
+   */
+  public static boolean hasBufferStorage(GL3 gl) {
+    return gl.isGL4() && gl.isFunctionAvailable("glBufferStorage");
+  }
+
+  /**
+   * True if the context supports immutable texture storage (GL 4.2 or ARB_texture_storage).
+   */
+  public static boolean hasTextureStorage(GL3 gl) {
+    return gl.getContext().getGLVersionNumber().compareTo(new VersionNumber(4, 2, 0)) >= 0
+      || gl.isExtensionAvailable("GL_ARB_texture_storage");
+  }
+
+  /**
+   * Allocate storage for the buffer bound to target.  Uses immutable storage when available,
+   * otherwise a single glBufferData.  Immutable storage can't be resized, so when the size
+   * changes the caller needs to delete the buffer and generate a new name before calling this.
+   *
+   * @param data Initial contents, may be null.
+   * @param usage Usage hint for the glBufferData fallback.
+   * @param storageFlags Flags for glBufferStorage.
+   */
+  public static void allocateBuffer(GL3 gl, int target, long bytes, Buffer data, int usage, int storageFlags) {
+    if (bytes > 0 && hasBufferStorage(gl)) {
+      gl.getGL4().glBufferStorage(target, bytes, data, storageFlags);
+    } else {
+      gl.glBufferData(target, bytes, data, usage);
+    }
+  }
+
   /**
    * Check for OpenGL errors and log them
    */
@@ -777,6 +909,8 @@ public class GLUtil {
     private static int textureCreationCount = 0;
     private static int textureDisposalCount = 0;
     private static long totalTextureMemoryAllocated = 0;
+    private static int cacheHits = 0;
+    private static int cacheMisses = 0;
     
     public static void recordTextureCreation(int width, int height, int bytesPerPixel) {
       textureCreationCount++;
@@ -787,23 +921,44 @@ public class GLUtil {
     }
     
     public static void recordTextureDisposal(int width, int height, int bytesPerPixel) {
+      recordTextureDisposal((long) width * height * bytesPerPixel);
+    }
+
+    public static void recordTextureDisposal(long bytes) {
       textureDisposalCount++;
-      totalTextureMemoryAllocated -= (long) width * height * bytesPerPixel;
-      LX.log("Texture disposed: " + width + "x" + height + " (" + (width * height * bytesPerPixel) + " bytes)" +
+      totalTextureMemoryAllocated -= bytes;
+      LX.log("Texture disposed: " + bytes + " bytes" +
              " | Total: " + textureCreationCount + " created, " + textureDisposalCount + " disposed" +
              " | Estimated memory: " + (totalTextureMemoryAllocated / 1024 / 1024) + " MB");
     }
+
+    /**
+     * An image was found already resident in the {@link TextureCache}.
+     */
+    public static void recordCacheHit() {
+      cacheHits++;
+    }
+
+    /**
+     * An image had to be decoded and uploaded by the {@link TextureCache}.
+     */
+    public static void recordCacheMiss() {
+      cacheMisses++;
+    }
     
     public static String getStats() {
-      int leakedTextures = textureCreationCount - textureDisposalCount;
-      return String.format("Texture Stats: %d created, %d disposed, %d potentially leaked, %d MB estimated memory",
-        textureCreationCount, textureDisposalCount, leakedTextures, totalTextureMemoryAllocated / 1024 / 1024);
+      int liveTextures = textureCreationCount - textureDisposalCount;
+      return String.format("Texture Stats: %d created, %d disposed, %d resident (%d KB), %d cache hits, %d cache misses",
+        textureCreationCount, textureDisposalCount, liveTextures, totalTextureMemoryAllocated / 1024,
+        cacheHits, cacheMisses);
     }
     
     public static void reset() {
       textureCreationCount = 0;
       textureDisposalCount = 0;
       totalTextureMemoryAllocated = 0;
+      cacheHits = 0;
+      cacheMisses = 0;
     }
   }
 
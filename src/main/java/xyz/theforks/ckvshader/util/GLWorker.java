@@ -0,0 +1,127 @@
+package xyz.theforks.ckvshader.util;
+
+import com.jogamp.opengl.GL3;
+import com.jogamp.opengl.GLContext;
+import heronarts.lx.LX;
+import xyz.theforks.ckvshader.patterns.CkVShader;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Long-lived thread that owns the shared offscreen GL context.  GL work is queued as jobs on a
+ * lock-free queue and each job returns a future.  The worker makes the context current once
+ * and keeps it while there is work queued, so the context is not handed back and forth between
+ * threads for every call.  All GL work on the shared context goes through the worker, no other
+ * thread makes it current, so nothing contends for JOGL's context lock.  Jobs get the GL with
+ * {@link #getGL}.
+ *
+ * Slow work that doesn't need the context, such as decoding images, should be done before the
+ * job is queued so it doesn't hold up the jobs behind it.
+ */
+public class GLWorker {
+
+  private static GLWorker instance;
+
+  private final ConcurrentLinkedQueue<Runnable> queue = new ConcurrentLinkedQueue<>();
+  private final Thread thread;
+  private GLContext currentContext;
+
+  public static synchronized GLWorker getInstance() {
+    if (instance == null) {
+      instance = new GLWorker();
+    }
+    return instance;
+  }
+
+  /**
+   * The shared context's GL.  Only for jobs running on the worker, where the context is current.
+   */
+  public static GL3 getGL() {
+    return CkVShader.glDrawable.getGL().getGL3();
+  }
+
+  private GLWorker() {
+    thread = new Thread(this::loop, "CkVShader GL");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Queue a job that produces a result.
+   */
+  public <T> CompletableFuture<T> submit(Callable<T> job) {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    queue.offer(() -> {
+      try {
+        future.complete(job.call());
+      } catch (Throwable t) {
+        LX.log("Error in GL job: " + t.getMessage());
+        future.completeExceptionally(t);
+      }
+    });
+    LockSupport.unpark(thread);
+    return future;
+  }
+
+  /**
+   * Queue a job without a result.  The returned future completes when the job has run.
+   */
+  public CompletableFuture<Void> execute(Runnable job) {
+    return submit(() -> {
+      job.run();
+      return null;
+    });
+  }
+
+  /**
+   * Run the job on the worker and wait for it to finish.  Runs it immediately if called from
+   * the worker itself.  Use this for work whose results the caller needs right away.
+   */
+  public void invokeAndWait(Runnable job) {
+    if (Thread.currentThread() == thread) {
+      job.run();
+      return;
+    }
+    try {
+      execute(job).join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  private void loop() {
+    while (true) {
+      Runnable job = queue.poll();
+      if (job == null) {
+        releaseContext();
+        // A job offered after the poll unparks us, and an unpark that arrives before park()
+        // makes it return immediately, so no wakeup is lost.
+        LockSupport.park(this);
+        continue;
+      }
+      makeContextCurrent();
+      job.run();
+    }
+  }
+
+  private void makeContextCurrent() {
+    if (currentContext == null && CkVShader.glDrawable != null) {
+      currentContext = CkVShader.glDrawable.getContext();
+      currentContext.makeCurrent();
+    }
+  }
+
+  private void releaseContext() {
+    if (currentContext != null) {
+      currentContext.release();
+      currentContext = null;
+    }
+  }
+}
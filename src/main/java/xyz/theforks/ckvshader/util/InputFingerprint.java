@@ -0,0 +1,90 @@
+package xyz.theforks.ckvshader.util;
+
+import java.util.Arrays;
+
+/**
+ * Everything a shader evaluation depends on, recorded as a list of raw values so that it can be
+ * compared with the previous frame.  When a shader is time-invariant, or its speed is zero, and
+ * none of its sliders, textures or the model geometry changed, it produces exactly the same output
+ * as last frame and the draw and readback can be skipped.
+ *
+ * Values are compared exactly rather than hashed so a change is never missed.  The arrays only
+ * grow, so after the first few frames recording a fingerprint does not allocate.
+ */
+public class InputFingerprint {
+
+  private long[] current = new long[16];
+  private long[] previous = new long[16];
+  private int count = 0;
+  // -1 until the first fingerprint is committed, or after invalidate().
+  private int previousCount = -1;
+
+  private long evaluated = 0;
+  private long reused = 0;
+
+  /**
+   * Start recording a new fingerprint.
+   */
+  public InputFingerprint begin() {
+    count = 0;
+    return this;
+  }
+
+  public InputFingerprint add(long value) {
+    if (count == current.length) {
+      current = Arrays.copyOf(current, count * 2);
+    }
+    current[count++] = value;
+    return this;
+  }
+
+  public InputFingerprint add(int value) {
+    return add((long) value);
+  }
+
+  /**
+   * Floats are compared by their bits, so NaN matches NaN and -0 differs from 0.
+   */
+  public InputFingerprint add(float value) {
+    return add((long) Float.floatToRawIntBits(value));
+  }
+
+  /**
+   * Compare the recorded fingerprint with the previous one, which it then replaces.
+   *
+   * @return true if anything differs and the shader has to be evaluated.
+   */
+  public boolean changed() {
+    boolean changed = count != previousCount
+      || !Arrays.equals(current, 0, count, previous, 0, count);
+    long[] swap = previous;
+    previous = current;
+    current = swap.length >= previous.length ? swap : new long[previous.length];
+    previousCount = count;
+    if (changed) {
+      evaluated++;
+    } else {
+      reused++;
+    }
+    return changed;
+  }
+
+  /**
+   * Force the next fingerprint to count as changed, for example after GL object IDs may have
+   * been reused by a reload.
+   */
+  public void invalidate() {
+    previousCount = -1;
+  }
+
+  public String getStats() {
+    long total = evaluated + reused;
+    return String.format("Inputs: %d frames evaluated, %d reused (%.1f%%)",
+      evaluated, reused, total > 0 ? 100.0 * reused / total : 0.0);
+  }
+
+  public void resetStats() {
+    evaluated = 0;
+    reused = 0;
+  }
+}
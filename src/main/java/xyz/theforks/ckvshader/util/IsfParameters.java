@@ -0,0 +1,158 @@
+package xyz.theforks.ckvshader.util;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import heronarts.lx.LX;
+import heronarts.lx.parameter.CompoundParameter;
+import heronarts.lx.parameter.LXParameter;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * The sliders of a shader pattern, declared as ISF INPUTS in the JSON comment block at the top
+ * of the shader.  Each input with a NAME, DEFAULT, MIN and MAX becomes a CompoundParameter that
+ * is added to the pattern and uploaded to the uniform of the same name.
+ */
+public class IsfParameters {
+
+  private final LinkedHashMap<String, CompoundParameter> params = new LinkedHashMap<String, CompoundParameter>();
+  private final BiConsumer<String, LXParameter> add;
+  private final Consumer<String> remove;
+  private JsonObject metadata;
+
+  /**
+   * @param add Adds a parameter to the pattern, usually the pattern's addParameter.
+   * @param remove Removes a parameter from the pattern, usually the pattern's removeParameter.
+   */
+  public IsfParameters(BiConsumer<String, LXParameter> add, Consumer<String> remove) {
+    this.add = add;
+    this.remove = remove;
+  }
+
+  /**
+   * The current sliders by uniform name, in declaration order.
+   */
+  public LinkedHashMap<String, CompoundParameter> getParameters() {
+    return params;
+  }
+
+  /**
+   * The ISF metadata the sliders were last updated from, or null.
+   */
+  public JsonObject getMetadata() {
+    return metadata;
+  }
+
+  /**
+   * Remove all of the sliders from the pattern.
+   */
+  public void clear() {
+    for (String key : params.keySet()) {
+      remove.accept(key);
+    }
+    params.clear();
+  }
+
+  /**
+   * Parse the ISF JSON in the first comment block of a shader.
+   *
+   * @return The metadata, or null if there is none or it can't be parsed.
+   */
+  public static JsonObject parse(String shaderSource) {
+    int endOfComment = shaderSource.indexOf("*/");
+    int startOfComment = shaderSource.indexOf("/*");
+    if (startOfComment < 0 || endOfComment <= startOfComment) {
+      LX.log("No ISF comment block found in shader");
+      return null;
+    }
+    try {
+      String jsonDef = shaderSource.substring(startOfComment + 2, endOfComment);
+      return (JsonObject)new JsonParser().parse(jsonDef);
+    } catch (Exception e) {
+      LX.log("Error parsing ISF metadata: " + e.getMessage());
+      // Continue without ISF parameters rather than crashing
+      return null;
+    }
+  }
+
+  /**
+   * The names of the inputs in the metadata that become sliders, in declaration order.
+   */
+  public static List<String> names(JsonObject metadata) {
+    List<String> names = new ArrayList<String>();
+    if (metadata == null || !metadata.has("INPUTS")) {
+      return names;
+    }
+    try {
+      JsonArray inputs = metadata.getAsJsonArray("INPUTS");
+      for (int k = 0; k < inputs.size(); k++) {
+        JsonObject input = (JsonObject)inputs.get(k);
+        if (input.has("NAME") && input.has("DEFAULT") && input.has("MIN") && input.has("MAX")) {
+          names.add(input.get("NAME").getAsString());
+        }
+      }
+    } catch (Exception e) {
+      LX.log("Error parsing ISF metadata: " + e.getMessage());
+    }
+    return names;
+  }
+
+  /**
+   * Add a slider for each input declared in the metadata.  Sliders that already exist keep
+   * their current value, and sliders for inputs that are no longer declared are removed.
+   */
+  public void update(JsonObject metadata) {
+    this.metadata = metadata;
+    Set<String> declared = new HashSet<String>();
+    try {
+      if (metadata != null && metadata.has("INPUTS")) {
+        JsonArray inputs = metadata.getAsJsonArray("INPUTS");
+        if (inputs != null) {
+          for (int k = 0; k < inputs.size(); k++) {
+            try {
+              JsonObject input = (JsonObject)inputs.get(k);
+              if (input.has("NAME") && input.has("DEFAULT") && input.has("MIN") && input.has("MAX")) {
+                String pName = input.get("NAME").getAsString();
+                float pDefault = input.get("DEFAULT").getAsFloat();
+                float pMin = input.get("MIN").getAsFloat();
+                float pMax = input.get("MAX").getAsFloat();
+                if (!params.containsKey(pName)) {
+                  CompoundParameter cp = new CompoundParameter(pName, pDefault, pMin, pMax);
+                  params.put(pName, cp);
+                  add.accept(pName, cp);
+                }
+                declared.add(pName);
+              } else {
+                LX.log("Skipping ISF input with missing required fields at index " + k);
+              }
+            } catch (Exception e) {
+              LX.log("Error parsing ISF input at index " + k + ": " + e.getMessage());
+            }
+          }
+        }
+      } else {
+        LX.log("No ISF metadata or INPUTS found in shader");
+      }
+    } catch (Exception e) {
+      LX.log("Error parsing ISF metadata: " + e.getMessage());
+    }
+
+    List<String> removeKeys = new ArrayList<String>();
+    for (String key : params.keySet()) {
+      if (!declared.contains(key)) {
+        removeKeys.add(key);
+      }
+    }
+    for (String key : removeKeys) {
+      remove.accept(key);
+      params.remove(key);
+    }
+  }
+}
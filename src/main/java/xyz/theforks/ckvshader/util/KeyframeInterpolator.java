@@ -0,0 +1,156 @@
+package xyz.theforks.ckvshader.util;
+
+import heronarts.lx.model.LXPoint;
+
+/**
+ * Runs a shader at a reduced evaluation rate and fills in the frames in between by blending the
+ * colors of the two most recent evaluations.  Evaluations are made one interval ahead of the
+ * displayed time, so at any moment the output is a blend between the keyframe just before and
+ * the keyframe just after it, without adding latency.
+ *
+ * The keyframes are stored per point, in the order of the evaluated points, and only reallocated
+ * when the number of points changes.  Blending is done with integer math on the packed ARGB
+ * values, so the per-frame work is a single allocation-free loop.
+ */
+public class KeyframeInterpolator {
+
+  private int[] from = new int[0];
+  private int[] to = new int[0];
+  // Number of keyframes captured since the last reset.  Blending needs two.
+  private int keyframes = 0;
+  private double intervalMs = 0;
+  // Time since the "from" keyframe.
+  private double elapsedMs = 0;
+
+  // Statistics
+  private long statFrames = 0;
+  private long statEvaluations = 0;
+
+  /**
+   * Set the evaluation rate.  A rate of zero or less disables interpolation and the shader
+   * should be evaluated every frame.  Changing the rate keeps the current keyframes so it can be
+   * called every frame, for example with a modulated value.
+   */
+  public void setRate(double hz) {
+    final double interval = hz > 0 ? 1000.0 / hz : 0;
+    if ((interval > 0) != (intervalMs > 0)) {
+      reset();
+    }
+    intervalMs = interval;
+  }
+
+  public boolean isEnabled() {
+    return intervalMs > 0;
+  }
+
+  /**
+   * Time between evaluations.  Each evaluation after the first should step the shader clock by
+   * this much.
+   */
+  public double getIntervalMs() {
+    return intervalMs;
+  }
+
+  /**
+   * True until the first keyframe has been captured.  The first evaluation is made at the
+   * current time, the one after it an interval later.
+   */
+  public boolean needsPriming() {
+    return keyframes == 0;
+  }
+
+  /**
+   * Discard the keyframes so blending starts over from the next evaluation.
+   */
+  public void reset() {
+    keyframes = 0;
+    elapsedMs = 0;
+  }
+
+  /**
+   * Advance the displayed time by one engine frame.
+   *
+   * @return true if a new keyframe has to be evaluated before blending this frame.
+   */
+  public boolean advance(double deltaMs) {
+    statFrames++;
+    if (keyframes < 2) {
+      return true;
+    }
+    elapsedMs += deltaMs;
+    if (elapsedMs < intervalMs) {
+      return false;
+    }
+    elapsedMs -= intervalMs;
+    // After a long stall don't try to catch up one interval at a time.
+    if (elapsedMs >= intervalMs) {
+      elapsedMs = 0;
+    }
+    return true;
+  }
+
+  /**
+   * Capture the colors of an evaluation as the newest keyframe.  The previous newest keyframe
+   * becomes the one being blended from.
+   */
+  public void pushKeyframe(LXPoint[] points, int[] colors) {
+    statEvaluations++;
+    if (to.length != points.length) {
+      from = new int[points.length];
+      to = new int[points.length];
+      keyframes = 0;
+    }
+    int[] swap = from;
+    from = to;
+    to = swap;
+    for (int i = 0; i < points.length; i++) {
+      to[i] = colors[points[i].index];
+    }
+    if (keyframes == 0) {
+      System.arraycopy(to, 0, from, 0, to.length);
+    }
+    keyframes++;
+  }
+
+  /**
+   * Write the blend of the two keyframes for the current time into colors.
+   */
+  public void interpolate(LXPoint[] points, int[] colors) {
+    if (keyframes == 0 || points.length != to.length) {
+      return;
+    }
+    // Blend factor in 1/256ths.
+    final int f = (int) (256 * Math.min(1.0, elapsedMs / intervalMs));
+    final int[] from = this.from;
+    final int[] to = this.to;
+    for (int i = 0; i < points.length; i++) {
+      final int a = from[i];
+      final int b = to[i];
+      if (a == b) {
+        colors[points[i].index] = a;
+        continue;
+      }
+      int c = 0;
+      for (int shift = 0; shift < 32; shift += 8) {
+        final int ca = (a >>> shift) & 0xff;
+        final int cb = (b >>> shift) & 0xff;
+        c |= (ca + (((cb - ca) * f) >> 8)) << shift;
+      }
+      colors[points[i].index] = c;
+    }
+  }
+
+  /**
+   * Shader evaluations compared to frames displayed since the last reset of the statistics.
+   */
+  public String getStats() {
+    double saved = statFrames > 0 ? 100.0 * (statFrames - statEvaluations) / statFrames : 0;
+    return String.format("Interpolation (%.1f Hz): %d frames, %d evaluations, %.1f%% of GPU work saved",
+      intervalMs > 0 ? 1000.0 / intervalMs : 0.0, statFrames, statEvaluations, saved);
+  }
+
+  public void resetStats() {
+    statFrames = 0;
+    statEvaluations = 0;
+  }
+}
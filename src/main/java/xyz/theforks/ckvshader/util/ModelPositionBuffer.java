@@ -0,0 +1,209 @@
+package xyz.theforks.ckvshader.util;
+
+import com.jogamp.opengl.GL3;
+import heronarts.lx.LX;
+import heronarts.lx.model.LXModel;
+import heronarts.lx.model.LXPoint;
+
+import java.nio.FloatBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.jogamp.opengl.GL.GL_ARRAY_BUFFER;
+import static com.jogamp.opengl.GL.GL_STATIC_DRAW;
+import static com.jogamp.opengl.GL4.GL_DYNAMIC_STORAGE_BIT;
+
+/**
+ * GPU vertex buffer holding the normalized xn/yn/zn positions of a set of LXPoints.
+ * The positions are uploaded once and only re-sent when LX reports that the model geometry
+ * has changed.  When the point count is unchanged only the range of floats that actually
+ * moved is sent with glBufferSubData, otherwise the buffer is re-allocated.  Immutable storage
+ * is used when the driver supports it.
+ *
+ * The shader patterns get their buffers from {@link PositionBufferRegistry}, which shares them
+ * between patterns, so those must not be re-pointed with {@link #setPoints}.  Buffers are created
+ * with {@link #create} and detached with {@link #removeListener} on the engine thread, where LX
+ * notifies its listeners, while the GPU side is only touched on the GL thread.
+ */
+public class ModelPositionBuffer implements LX.Listener {
+
+  private final LX lx;
+  private LXPoint[] points;
+  // CPU copy of what is currently resident in the GPU buffer.
+  private float[] positions = new float[0];
+  private int bufferId = 0;
+  // Size in floats of the GPU allocation, -1 if nothing has been allocated yet.
+  private int allocatedFloats = -1;
+  private volatile boolean dirty = true;
+
+  // Source of versions, shared by every buffer so no two buffers ever have the same version.
+  private static final AtomicLong VERSIONS = new AtomicLong();
+  // Changes whenever positions on the GPU change.  Unique across buffers, unlike the GL name that
+  // the driver may reuse after a buffer is deleted.
+  private long version = VERSIONS.incrementAndGet();
+  private int uploadCount = 0;
+  private long uploadedBytes = 0;
+
+  private ModelPositionBuffer(LX lx, LXPoint[] points) {
+    this.lx = lx;
+    this.points = points;
+  }
+
+  /**
+   * Create a buffer for a set of points that listens for model changes.  Must be called on the
+   * engine thread.  Doesn't make any GL calls.
+   */
+  public static ModelPositionBuffer create(LX lx, LXPoint[] points) {
+    ModelPositionBuffer buffer = new ModelPositionBuffer(lx, points);
+    lx.addListener(buffer);
+    return buffer;
+  }
+
+  /**
+   * Stop listening for model changes.  Must be called on the engine thread.
+   */
+  public void removeListener() {
+    lx.removeListener(this);
+  }
+
+  /**
+   * Point the buffer at a different set of points, for example when the pattern's model changes.
+   * The upload happens on the next call to {@link #update(GL3)}.
+   */
+  public void setPoints(LXPoint[] points) {
+    this.points = points;
+    this.dirty = true;
+  }
+
+  public LXPoint[] getPoints() {
+    return points;
+  }
+
+  /**
+   * Number of vertices in the buffer.
+   */
+  public int size() {
+    return points.length;
+  }
+
+  public int getBufferId() {
+    return bufferId;
+  }
+
+  /**
+   * Changes whenever {@link #update(GL3)} uploads new positions.  Never the same for two
+   * different buffers, so it identifies the positions a draw used.
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * Force a full position refresh on the next update.
+   */
+  public void markDirty() {
+    dirty = true;
+  }
+
+  @Override
+  public void modelGenerationChanged(LX lx, LXModel model) {
+    dirty = true;
+  }
+
+  @Override
+  public void modelChanged(LX lx, LXModel model) {
+    dirty = true;
+  }
+
+  /**
+   * Make sure the GPU buffer reflects the current point positions.  Must be called with the
+   * GL context current.  When nothing has changed this makes no GL calls.  Otherwise the position
+   * buffer is left bound to GL_ARRAY_BUFFER.  Note that the buffer ID can change if immutable
+   * storage has to be re-created at a new size.
+   *
+   * @return true if anything was uploaded.
+   */
+  public boolean update(GL3 gl) {
+    if (bufferId == 0) {
+      bufferId = genBuffer(gl);
+      dirty = true;
+    }
+    if (!dirty) {
+      return false;
+    }
+    dirty = false;
+
+    final int numFloats = points.length * 3;
+    if (numFloats != allocatedFloats) {
+      // Size changed, re-allocate and send everything.  Immutable storage can't be resized so
+      // it needs a new buffer.
+      if (allocatedFloats >= 0 && GLUtil.hasBufferStorage(gl)) {
+        gl.glDeleteBuffers(1, new int[] {bufferId}, 0);
+        bufferId = genBuffer(gl);
+      }
+      gl.glBindBuffer(GL_ARRAY_BUFFER, bufferId);
+      positions = new float[numFloats];
+      for (int i = 0; i < points.length; i++) {
+        positions[i * 3] = points[i].xn;
+        positions[i * 3 + 1] = points[i].yn;
+        positions[i * 3 + 2] = points[i].zn;
+      }
+      GLUtil.allocateBuffer(gl, GL_ARRAY_BUFFER, (long) numFloats * Float.BYTES, FloatBuffer.wrap(positions),
+        GL_STATIC_DRAW, GL_DYNAMIC_STORAGE_BIT);
+      allocatedFloats = numFloats;
+      recordUpload(numFloats);
+      return true;
+    }
+
+    // Same size, find the range of floats that actually changed.
+    int first = -1;
+    int last = -1;
+    for (int i = 0; i < points.length; i++) {
+      final LXPoint p = points[i];
+      final int o = i * 3;
+      if (positions[o] != p.xn || positions[o + 1] != p.yn || positions[o + 2] != p.zn) {
+        positions[o] = p.xn;
+        positions[o + 1] = p.yn;
+        positions[o + 2] = p.zn;
+        if (first < 0) first = o;
+        last = o + 2;
+      }
+    }
+    if (first < 0) {
+      return false;
+    }
+    int count = last - first + 1;
+    gl.glBindBuffer(GL_ARRAY_BUFFER, bufferId);
+    gl.glBufferSubData(GL_ARRAY_BUFFER, (long) first * Float.BYTES, (long) count * Float.BYTES,
+      FloatBuffer.wrap(positions, first, count));
+    recordUpload(count);
+    return true;
+  }
+
+  private int genBuffer(GL3 gl) {
+    int[] ids = new int[1];
+    gl.glGenBuffers(1, ids, 0);
+    return ids[0];
+  }
+
+  private void recordUpload(int numFloats) {
+    version = VERSIONS.incrementAndGet();
+    uploadCount++;
+    uploadedBytes += (long) numFloats * Float.BYTES;
+  }
+
+  public String getStats() {
+    return String.format("Positions: %d points, %d uploads, %d KB uploaded",
+      points.length, uploadCount, uploadedBytes / 1024);
+  }
+
+  /**
+   * Release the GPU buffer.  Must be called with the GL context current.
+   */
+  public void dispose(GL3 gl) {
+    if (bufferId != 0) {
+      gl.glDeleteBuffers(1, new int[] {bufferId}, 0);
+      bufferId = 0;
+    }
+    allocatedFloats = -1;
+  }
+}
@@ -0,0 +1,112 @@
+package xyz.theforks.ckvshader.util;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Splits a per-point pass over the shader output into chunks that run in parallel on a
+ * dedicated ForkJoinPool.  Passes with fewer than PARALLEL_THRESHOLD points run on the calling
+ * thread, since for small models handing the work to the pool costs more than it saves.
+ *
+ * The chunk tasks are kept and reinitialized from frame to frame, and the body is a Range the
+ * caller creates once, so running a pass doesn't allocate unless the number of chunks grows.
+ * Each chunk writes a disjoint set of points, and the calling thread waits for every chunk, so
+ * the results are visible to it when run() returns.  An instance must only be used by one thread
+ * at a time.
+ */
+public class ParallelScatter {
+
+  // Points below which a pass runs on the calling thread.
+  public static final int PARALLEL_THRESHOLD = 65536;
+  // Smallest chunk handed to a worker.
+  private static final int MIN_CHUNK_SIZE = 8192;
+
+  private static ForkJoinPool pool;
+
+  /**
+   * The shared pool, separate from the common pool so the post pass doesn't compete with
+   * unrelated parallel streams.  Its threads are daemons so they don't keep the JVM alive.
+   */
+  static synchronized ForkJoinPool getPool() {
+    if (pool == null) {
+      final int parallelism = Math.max(1, Runtime.getRuntime().availableProcessors());
+      pool = new ForkJoinPool(parallelism, p -> {
+        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+        thread.setName("CkVShader-scatter-" + thread.getPoolIndex());
+        thread.setDaemon(true);
+        return thread;
+      }, null, false);
+    }
+    return pool;
+  }
+
+  /**
+   * Work on the points in [start, end).
+   */
+  public interface Range {
+    void run(int start, int end);
+  }
+
+  private final class Chunk extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    int start;
+    int end;
+
+    @Override
+    protected void compute() {
+      body.run(start, end);
+    }
+  }
+
+  private final RecursiveAction root = new RecursiveAction() {
+    @Override
+    protected void compute() {
+      for (int c = 1; c < numChunks; c++) {
+        chunks[c].fork();
+      }
+      chunks[0].invoke();
+      for (int c = 1; c < numChunks; c++) {
+        chunks[c].join();
+      }
+    }
+  };
+
+  private Chunk[] chunks = new Chunk[0];
+  private int numChunks = 0;
+  private Range body;
+
+  /**
+   * Run body over the points in [0, n), in parallel if n is large enough.
+   */
+  public void run(int n, Range body) {
+    if (n < PARALLEL_THRESHOLD) {
+      body.run(0, n);
+      return;
+    }
+    final ForkJoinPool pool = getPool();
+    final int chunkSize = Math.max(MIN_CHUNK_SIZE, (n + pool.getParallelism() * 4 - 1) / (pool.getParallelism() * 4));
+    numChunks = (n + chunkSize - 1) / chunkSize;
+    if (chunks.length < numChunks) {
+      Chunk[] grown = new Chunk[numChunks];
+      System.arraycopy(chunks, 0, grown, 0, chunks.length);
+      for (int c = chunks.length; c < numChunks; c++) {
+        grown[c] = new Chunk();
+      }
+      chunks = grown;
+    }
+    for (int c = 0; c < numChunks; c++) {
+      chunks[c].reinitialize();
+      chunks[c].start = c * chunkSize;
+      chunks[c].end = Math.min(n, (c + 1) * chunkSize);
+    }
+    this.body = body;
+    try {
+      root.reinitialize();
+      pool.invoke(root);
+    } finally {
+      this.body = null;
+    }
+  }
+}
@@ -0,0 +1,111 @@
+package xyz.theforks.ckvshader.util;
+
+import com.jogamp.opengl.GL3;
+
+import static com.jogamp.opengl.GL.GL_ARRAY_BUFFER;
+import static com.jogamp.opengl.GL.GL_FLOAT;
+
+/**
+ * Vertex array object that feeds the LED positions in a {@link ModelPositionBuffer} to the
+ * "position" attribute of a transform feedback shader.  The attribute location is looked up and
+ * the attribute setup recorded when a program is linked, so each frame only needs to bind the
+ * VAO before drawing.  The setup is only recorded again if the positions are switched to another
+ * buffer, or their GL buffer is re-created, which happens when immutable storage has to change
+ * size.  The buffer object is compared as well as its GL name, since a deleted buffer's name may
+ * be reused by the next one.
+ */
+public class PointVertexArray {
+
+  public static final String POSITION_ATTRIBUTE = "position";
+
+  private ModelPositionBuffer positions;
+  private int vaoId = 0;
+  private int attribLoc = -1;
+  // What the VAO currently has recorded.
+  private int recordedAttribLoc = -1;
+  private ModelPositionBuffer recordedPositions;
+  private int recordedBufferId = 0;
+
+  public PointVertexArray(ModelPositionBuffer positions) {
+    this.positions = positions;
+  }
+
+  public ModelPositionBuffer getPositions() {
+    return positions;
+  }
+
+  /**
+   * Feed a different position buffer to the attribute.  The setup is recorded again on the next
+   * bind.
+   */
+  public void setPositions(ModelPositionBuffer positions) {
+    this.positions = positions;
+  }
+
+  /**
+   * Location of the position attribute in the current program, -1 if it has none.
+   */
+  public int getAttribLocation() {
+    return attribLoc;
+  }
+
+  /**
+   * Look up the position attribute of a newly linked program and record it in the VAO.  Must
+   * be called with the GL context current.
+   */
+  public void setProgram(GL3 gl, int programId) {
+    attribLoc = gl.glGetAttribLocation(programId, POSITION_ATTRIBUTE);
+    bind(gl);
+    unbind(gl);
+  }
+
+  /**
+   * Bind the VAO for drawing, uploading any pending position changes first.  Must be called with
+   * the GL context current.
+   */
+  public void bind(GL3 gl) {
+    if (vaoId == 0) {
+      int[] ids = new int[1];
+      gl.glGenVertexArrays(1, ids, 0);
+      vaoId = ids[0];
+    }
+    gl.glBindVertexArray(vaoId);
+    positions.update(gl);
+    if (positions != recordedPositions || positions.getBufferId() != recordedBufferId
+        || attribLoc != recordedAttribLoc) {
+      record(gl);
+    }
+  }
+
+  public void unbind(GL3 gl) {
+    gl.glBindVertexArray(0);
+  }
+
+  private void record(GL3 gl) {
+    if (recordedAttribLoc >= 0 && recordedAttribLoc != attribLoc) {
+      gl.glDisableVertexAttribArray(recordedAttribLoc);
+    }
+    if (attribLoc >= 0) {
+      gl.glBindBuffer(GL_ARRAY_BUFFER, positions.getBufferId());
+      gl.glEnableVertexAttribArray(attribLoc);
+      gl.glVertexAttribPointer(attribLoc, 3, GL_FLOAT, false, 0, 0);
+    }
+    recordedAttribLoc = attribLoc;
+    recordedPositions = positions;
+    recordedBufferId = positions.getBufferId();
+  }
+
+  /**
+   * Release the VAO.  The position buffer is owned by the caller and is not disposed.  Must be
+   * called with the GL context current.
+   */
+  public void dispose(GL3 gl) {
+    if (vaoId != 0) {
+      gl.glDeleteVertexArrays(1, new int[] {vaoId}, 0);
+      vaoId = 0;
+    }
+    recordedAttribLoc = -1;
+    recordedPositions = null;
+    recordedBufferId = 0;
+  }
+}
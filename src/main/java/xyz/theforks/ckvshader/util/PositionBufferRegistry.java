@@ -0,0 +1,89 @@
+package xyz.theforks.ckvshader.util;
+
+import heronarts.lx.LX;
+import heronarts.lx.model.LXPoint;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Shares one {@link ModelPositionBuffer} between all the shader patterns that evaluate the same
+ * points.  Patterns on the same model or view get the same LXPoint[] from LX, so instead of every
+ * instance keeping its own CPU copy and GPU buffer of identical positions, the buffer for an
+ * array is created by the first user and deleted when the last one releases it.
+ *
+ * The buffer tracks geometry changes itself, so whichever pattern draws first in a frame does the
+ * upload and the others see an unchanged buffer with the same version.  Buffers are acquired and
+ * released on the engine thread, since they listen for model changes, and only updated on the
+ * GL thread.
+ */
+public class PositionBufferRegistry {
+
+  private static PositionBufferRegistry instance;
+
+  private static class Entry {
+    final ModelPositionBuffer buffer;
+    int refs = 0;
+
+    Entry(ModelPositionBuffer buffer) {
+      this.buffer = buffer;
+    }
+  }
+
+  private final LX lx;
+  // Keyed by array identity, the model's points array or a reduced detail subset of it.
+  private final Map<LXPoint[], Entry> entries = new IdentityHashMap<>();
+
+  public static synchronized PositionBufferRegistry getInstance(LX lx) {
+    if (instance == null) {
+      instance = new PositionBufferRegistry(lx);
+    }
+    return instance;
+  }
+
+  private PositionBufferRegistry(LX lx) {
+    this.lx = lx;
+  }
+
+  /**
+   * Get the shared position buffer for a set of points, creating it if nobody else is using
+   * them.  Every call must be matched by a call to {@link #release}.  Must be called on the engine
+   * thread.  Doesn't make any GL calls.
+   */
+  public synchronized ModelPositionBuffer acquire(LXPoint[] points) {
+    Entry entry = entries.get(points);
+    if (entry == null) {
+      entry = new Entry(ModelPositionBuffer.create(lx, points));
+      entries.put(points, entry);
+    }
+    entry.refs++;
+    return entry.buffer;
+  }
+
+  /**
+   * Give up a buffer returned by {@link #acquire}.  When this was the last user the buffer stops
+   * listening for model changes and the GPU buffer is deleted on the GL thread, after any draws
+   * already queued there.  Must be called on the engine thread.
+   */
+  public synchronized void release(ModelPositionBuffer buffer) {
+    Entry entry = entries.get(buffer.getPoints());
+    if (entry == null || entry.buffer != buffer) {
+      return;
+    }
+    if (--entry.refs <= 0) {
+      entries.remove(buffer.getPoints());
+      buffer.removeListener();
+      GLWorker.getInstance().execute(() -> buffer.dispose(GLWorker.getGL()));
+    }
+  }
+
+  public synchronized String getStats() {
+    int users = 0;
+    long bytes = 0;
+    for (Entry entry : entries.values()) {
+      users += entry.refs;
+      bytes += (long) entry.buffer.size() * 3 * Float.BYTES;
+    }
+    return String.format("Position buffers: %d shared by %d patterns, %d KB", entries.size(), users, bytes / 1024);
+  }
+}
@@ -0,0 +1,158 @@
+package xyz.theforks.ckvshader.util;
+
+import com.jogamp.opengl.GL3;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Shares linked transform feedback programs between pattern instances that run the same shader.
+ * Programs are keyed by a SHA-256 of the preprocessed source and the captured varyings, so
+ * several channels running the same .vtx with different sliders compile and link it once.
+ *
+ * Each user keeps its own uniform values.  Since uniforms are program state, a user has to send
+ * all of its values again whenever another user drew with the program since its last draw, see
+ * {@link #claim}.  Programs are added and released by GL threads with their context current, the
+ * GL worker and the compile threads, whose contexts share objects.
+ */
+public class ProgramPool {
+
+  private static ProgramPool instance;
+
+  private static class Entry {
+    final String key;
+    final int programId;
+    int refs = 0;
+    // The last user to draw with the program, whose uniform values it currently holds.
+    Object owner;
+
+    Entry(String key, int programId) {
+      this.key = key;
+      this.programId = programId;
+    }
+  }
+
+  private final Map<String, Entry> byKey = new HashMap<>();
+  private final Map<Integer, Entry> byProgram = new HashMap<>();
+
+  private int hits = 0;
+  private int misses = 0;
+
+  public static synchronized ProgramPool getInstance() {
+    if (instance == null) {
+      instance = new ProgramPool();
+    }
+    return instance;
+  }
+
+  private ProgramPool() {
+  }
+
+  /**
+   * The pool key for a shader.
+   *
+   * @param source Vertex shader source as it is compiled.
+   * @param varyings The transform feedback varyings captured from it.
+   */
+  public static String key(String source, String... varyings) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      digest.update(source.getBytes(StandardCharsets.UTF_8));
+      for (String varying : varyings) {
+        digest.update((byte) 0);
+        digest.update(varying.getBytes(StandardCharsets.UTF_8));
+      }
+      StringBuilder sb = new StringBuilder();
+      for (byte b : digest.digest()) {
+        sb.append(String.format("%02x", b));
+      }
+      return sb.toString();
+    } catch (Exception e) {
+      // SHA-256 is always available, but fall back to the text itself rather than fail.
+      return String.join("\0", varyings) + "\0" + source;
+    }
+  }
+
+  /**
+   * Take a reference to the program linked for a key.
+   *
+   * @return The program ID, or 0 if no user has linked it yet.
+   */
+  public synchronized int acquire(String key) {
+    Entry entry = byKey.get(key);
+    if (entry == null) {
+      misses++;
+      return 0;
+    }
+    hits++;
+    entry.refs++;
+    return entry.programId;
+  }
+
+  /**
+   * Add a program the caller just linked or loaded for a key, taking a reference to it.  If
+   * another thread added a program for the same key while this one was being built, the
+   * caller's copy is deleted and it gets a reference to the existing program instead.  Must be
+   * called with the GL context current.
+   *
+   * @return The program the caller now holds a reference to.
+   */
+  public synchronized int add(GL3 gl, String key, int programId) {
+    Entry existing = byKey.get(key);
+    if (existing != null && existing.programId != programId) {
+      existing.refs++;
+      gl.glDeleteProgram(programId);
+      return existing.programId;
+    }
+    Entry entry = new Entry(key, programId);
+    entry.refs = 1;
+    byKey.put(key, entry);
+    byProgram.put(programId, entry);
+    return programId;
+  }
+
+  /**
+   * Note that owner is about to draw with the program.
+   *
+   * @return true if another user drew with it since owner last did, so owner's uniform values
+   *         have to be sent again.
+   */
+  public synchronized boolean claim(int programId, Object owner) {
+    Entry entry = byProgram.get(programId);
+    if (entry == null || entry.owner == owner) {
+      return false;
+    }
+    boolean changed = entry.owner != null;
+    entry.owner = owner;
+    return changed;
+  }
+
+  /**
+   * Give up a reference to a program, deleting it when it was the last one.  Programs that were
+   * never added to the pool are deleted right away.  Must be called with the GL context current.
+   */
+  public synchronized void release(GL3 gl, int programId) {
+    Entry entry = byProgram.get(programId);
+    if (entry == null) {
+      gl.glDeleteProgram(programId);
+      return;
+    }
+    if (--entry.refs <= 0) {
+      byProgram.remove(programId);
+      // A program added later for the same key may have taken its place.
+      byKey.remove(entry.key, entry);
+      gl.glDeleteProgram(programId);
+    }
+  }
+
+  public synchronized String getStats() {
+    int refs = 0;
+    for (Entry entry : byKey.values()) {
+      refs += entry.refs;
+    }
+    return String.format("Program pool: %d programs shared by %d patterns, %d hits, %d misses",
+      byKey.size(), refs, hits, misses);
+  }
+}
@@ -13,10 +13,16 @@ import java.nio.IntBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 import java.util.Set;
 import java.util.HashSet;
@@ -27,18 +33,74 @@ import static com.jogamp.opengl.GL2ES2.GL_LINK_STATUS;
 /**
  * Manages compiled shader caching for CkVShader patterns to improve Chromatik startup performance.
  * Caches compiled OpenGL shader programs and associated metadata in the CkVShader/cache directory.
+ * The public methods are synchronized since shaders are built on several compile threads.
+ *
+ * A cached binary is only used when everything it depends on is unchanged: the preprocessed
+ * source it was linked from, the shader files, and the driver that produced it.  Files are
+ * written to a temporary file and renamed so a crash never leaves a partial file behind, and
+ * binaries are checksummed.  After a binary is loaded its uniform locations and captured
+ * varying are checked against the ones recorded when it was cached.  Any mismatch invalidates
+ * the entry and the caller compiles from source instead.
+ *
+ * Entries are keyed by the shader's directory and name, since shaders in different plugins may
+ * share a name.  Each entry's metadata is kept in its own key.meta file next to the key.cache
+ * binary, where the key is the shader name followed by a hash of its directory.  Metadata
+ * changes are queued and written by a background thread, which coalesces repeated changes to an
+ * entry into a single small write.  Queued writes are flushed at exit.  A manifest.json from
+ * older versions is converted on first load.
  */
 public class ShaderCache {
     private static ShaderCache instance;
     private final String cacheDir;
-    private final String manifestPath;
+    // Single file manifest of older versions, converted to per entry files on load.
+    private final String legacyManifestPath;
     private final Gson gson = new Gson();
     private CacheManifest manifest;
     
+    // How long metadata changes are collected before they are written.
+    private static final long WRITE_DELAY_MS = 250;
+    private static final String META_EXTENSION = ".meta";
+    // Entries waiting to be written by key, null to delete the entry's file.
+    private final Map<String, CacheEntry> pendingWrites = new HashMap<>();
+    // Binaries waiting to be written by key, null to delete the file.  Written before the
+    // metadata that refers to them.
+    private final Map<String, byte[]> pendingBinaries = new HashMap<>();
+    private boolean flushScheduled = false;
+    // Held for a whole flush, so the writer thread, the exit hook and clearCache don't interleave
+    // their file operations.  Taken before the cache's own lock, never while holding it.
+    private final Object flushLock = new Object();
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "CkVShader cache writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private int metadataWrites = 0;
+    
     // Cache statistics
     private int cacheHits = 0;
     private int cacheMisses = 0;
     
+    /**
+     * A file's checksum along with the size and modification time it was computed at.
+     */
+    private static class FileChecksum {
+        final String stamp;
+        final String checksum;
+        
+        FileChecksum(String stamp, String checksum) {
+            this.stamp = stamp;
+            this.checksum = checksum;
+        }
+    }
+    
+    // Checksums by path for the session.  Includes shared by many shaders are hashed once and
+    // again only when their stamp changes.  Guarded by itself, since caching uses it without
+    // holding the cache's lock.
+    private final Map<String, FileChecksum> checksums = new HashMap<>();
+    private int filesHashed = 0;
+    private int checksumsReused = 0;
+    private int stampMatches = 0;
+    
     /**
      * Represents a cached shader entry with metadata and dependency information
      */
@@ -49,25 +111,37 @@ public class ShaderCache {
         public Map<String, String> dependencies; // filename -> checksum
         public Map<String, Integer> uniformLocations;
         public JsonObject isfMetadata;
-        public byte[] programBinary;
+        // Only held while loading or caching, the binary itself lives in its own file.
+        public transient byte[] programBinary;
         public int programFormat;
         public boolean isValid;
+        // Directory the shader was loaded from, part of the entry's key.
+        public String shaderDir;
+        // Hash of the preprocessed source and captured varyings, see ProgramPool.key.
+        public String programKey;
+        // The driver that produced the binary, binaries are not portable between drivers.
+        public String driverFingerprint;
+        public String binaryChecksum;
+        // The captured varying's name and type, see capturedVarying.
+        public String varying;
+        // Size and modification time of the shader and dependency files when they were
+        // checksummed, path -> "size:mtime".  Files with the same stamp aren't hashed again.
+        public Map<String, String> fileStamps;
         
         public CacheEntry() {
             dependencies = new HashMap<>();
+            fileStamps = new HashMap<>();
             uniformLocations = new HashMap<>();
             isValid = true;
         }
     }
     
     /**
-     * Manages cache manifest with dependency tracking
+     * The cache entries in memory, with dependency tracking.  Also the format of the legacy
+     * manifest.json.
      */
     public static class CacheManifest {
         public Map<String, CacheEntry> entries;
-        public String glVendor;
-        public String glRenderer;
-        public String glVersion;
         public long manifestVersion;
         
         public CacheManifest() {
@@ -91,9 +165,10 @@ public class ShaderCache {
     
     private ShaderCache(LX lx) {
         this.cacheDir = GLUtil.shaderDir(lx) + File.separator + "cache";
-        this.manifestPath = cacheDir + File.separator + "manifest.json";
+        this.legacyManifestPath = cacheDir + File.separator + "manifest.json";
         initializeCacheDirectory();
-        loadManifest();
+        loadManifest(lx);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "CkVShader cache flush"));
     }
     
     /**
@@ -126,68 +201,309 @@ public class ShaderCache {
     }
     
     /**
-     * Load the cache manifest from disk
+     * Load the entries from their metadata files, converting a legacy manifest if there is one
      */
-    private void loadManifest() {
+    private void loadManifest(LX lx) {
+        manifest = new CacheManifest();
+        File[] files = new File(cacheDir).listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(".tmp")) {
+                // Left over from an interrupted write.
+                file.delete();
+            } else if (name.endsWith(META_EXTENSION)) {
+                try {
+                    CacheEntry entry = gson.fromJson(new String(Files.readAllBytes(file.toPath())), CacheEntry.class);
+                    adopt(name.substring(0, name.length() - META_EXTENSION.length()), entry);
+                } catch (Exception e) {
+                    LX.log("Skipping unreadable shader cache entry " + name + ": " + e.getMessage());
+                }
+            }
+        }
+        LX.log("Loaded shader cache with " + manifest.entries.size() + " entries");
+        
+        Path legacy = Paths.get(legacyManifestPath);
+        if (Files.exists(legacy)) {
+            try {
+                CacheManifest old = gson.fromJson(new String(Files.readAllBytes(legacy)), CacheManifest.class);
+                if (old != null && old.entries != null) {
+                    for (CacheEntry entry : old.entries.values()) {
+                        convertLegacy(lx, entry);
+                    }
+                    LX.log("Converting legacy shader cache manifest with " + old.entries.size() + " entries");
+                }
+                // Only deleted once the converted entries are on disk, otherwise it's converted
+                // again next time.
+                if (writePending()) {
+                    Files.delete(legacy);
+                }
+            } catch (Exception e) {
+                LX.log("Failed to convert legacy shader cache manifest: " + e.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * Add an entry read from disk.  Entries stored under another name, by older versions that
+     * keyed them by shader name only, are moved to their key.  Entries without a directory
+     * can't be keyed and are dropped along with their files, so the shader is compiled again.
+     *
+     * @param storedAs The name of the entry's files, or null if it came from the legacy manifest.
+     */
+    private void adopt(String storedAs, CacheEntry entry) {
+        if (entry == null || entry.shaderName == null || entry.shaderDir == null) {
+            if (storedAs != null) {
+                deleteFiles(storedAs);
+            }
+            return;
+        }
+        String key = cacheKey(entry.shaderName, entry.shaderDir);
+        if (key.equals(storedAs)) {
+            manifest.entries.put(key, entry);
+            return;
+        }
+        String oldBinary = storedAs != null ? storedAs : entry.shaderName;
+        if (manifest.entries.containsKey(key)) {
+            deleteFiles(oldBinary);
+            return;
+        }
         try {
-            if (Files.exists(Paths.get(manifestPath))) {
-                String manifestJson = new String(Files.readAllBytes(Paths.get(manifestPath)));
-                manifest = gson.fromJson(manifestJson, CacheManifest.class);
-                LX.log("Loaded shader cache manifest with " + manifest.entries.size() + " entries");
-            } else {
-                manifest = new CacheManifest();
-                LX.log("Created new shader cache manifest");
+            Files.move(binaryPath(oldBinary), binaryPath(key), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            // Without its binary the entry is invalidated on first use.
+        }
+        manifest.entries.put(key, entry);
+        queueWrite(key, entry);
+        if (storedAs != null) {
+            queueWrite(storedAs, null);
+        }
+    }
+    
+    /**
+     * Add an entry from the legacy manifest, which didn't record the shader's directory.  The
+     * directory is found by looking for the shader in the CkVShader shader directory, then in
+     * the plugins' shader directories.  Entries from before program keys were recorded would
+     * never be used, and neither can entries whose shader isn't found or is found in more than
+     * one plugin, so their binaries are deleted instead.
+     */
+    private void convertLegacy(LX lx, CacheEntry entry) {
+        if (entry == null || entry.shaderName == null) {
+            return;
+        }
+        if (entry.programKey != null) {
+            entry.shaderDir = legacyShaderDir(lx, entry.shaderName);
+        }
+        if (entry.shaderDir != null) {
+            adopt(null, entry);
+        } else {
+            deleteFiles(entry.shaderName);
+        }
+    }
+    
+    /**
+     * The directory of a shader cached by name only, or null if it isn't exactly one place.
+     */
+    private static String legacyShaderDir(LX lx, String shaderName) {
+        String defaultDir = GLUtil.shaderDir(lx);
+        if (new File(defaultDir, shaderName + ".vtx").isFile()) {
+            return defaultDir;
+        }
+        String found = null;
+        File[] plugins = new File(lx.getMediaPath() + File.separator + "Data").listFiles(File::isDirectory);
+        if (plugins != null) {
+            for (File plugin : plugins) {
+                // Built the same way as GLUtil.resolveShaderPath, so the key matches on lookup.
+                String dir = lx.getMediaPath() + File.separator + "Data" + File.separator + plugin.getName()
+                        + File.separator + "shaders";
+                if (new File(dir, shaderName + ".vtx").isFile()) {
+                    if (found != null) {
+                        return null;
+                    }
+                    found = dir;
+                }
             }
-        } catch (Exception e) {
-            LX.log("Failed to load manifest, creating new one: " + e.getMessage());
-            manifest = new CacheManifest();
+        }
+        return found;
+    }
+    
+    private void deleteFiles(String key) {
+        try {
+            Files.deleteIfExists(binaryPath(key));
+            Files.deleteIfExists(metaPath(key));
+        } catch (IOException e) {
+            LX.log("Failed to delete shader cache entry " + key + ": " + e.getMessage());
+        }
+    }
+    
+    /**
+     * The key of a shader's entry, also the base name of its files.
+     */
+    private static String cacheKey(String shaderName, String shaderDir) {
+        return shaderName + "-" + checksum(shaderDir.getBytes(java.nio.charset.StandardCharsets.UTF_8)).substring(0, 12);
+    }
+    
+    private Path metaPath(String key) {
+        return Paths.get(cacheDir, key + META_EXTENSION);
+    }
+    
+    private Path binaryPath(String key) {
+        return Paths.get(cacheDir, key + ".cache");
+    }
+    
+    /**
+     * Queue an entry's metadata to be written, or deleted if entry is null.  A later change to
+     * the same entry before the write replaces this one.
+     */
+    private synchronized void queueWrite(String key, CacheEntry entry) {
+        pendingWrites.put(key, entry);
+        if (!flushScheduled) {
+            flushScheduled = true;
+            writer.schedule(this::flush, WRITE_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    /**
+     * Write the queued metadata changes.  Runs on the writer thread, and at exit.
+     */
+    private void flush() {
+        writePending();
+    }
+    
+    /**
+     * Write the queued binaries and metadata changes.
+     *
+     * @return false if any of them failed.
+     */
+    private boolean writePending() {
+        synchronized (flushLock) {
+            Map<String, byte[]> binaries;
+            Map<String, byte[]> writes = new HashMap<>();
+            synchronized (this) {
+                flushScheduled = false;
+                if (pendingWrites.isEmpty() && pendingBinaries.isEmpty()) {
+                    return true;
+                }
+                binaries = new HashMap<>(pendingBinaries);
+                pendingBinaries.clear();
+                for (Map.Entry<String, CacheEntry> pending : pendingWrites.entrySet()) {
+                    CacheEntry entry = pending.getValue();
+                    writes.put(pending.getKey(), entry != null ? gson.toJson(entry).getBytes() : null);
+                }
+                pendingWrites.clear();
+            }
+            // File I/O happens outside the cache's lock, so compile threads aren't held up by it.
+            boolean ok = true;
+            for (Map.Entry<String, byte[]> binary : binaries.entrySet()) {
+                try {
+                    if (binary.getValue() != null) {
+                        writeAtomically(binaryPath(binary.getKey()), binary.getValue());
+                    } else {
+                        Files.deleteIfExists(binaryPath(binary.getKey()));
+                    }
+                } catch (IOException e) {
+                    LX.log("Failed to save shader cache binary " + binary.getKey() + ": " + e.getMessage());
+                    // No metadata referring to a binary that isn't there.
+                    writes.remove(binary.getKey());
+                    ok = false;
+                }
+            }
+            int written = 0;
+            for (Map.Entry<String, byte[]> write : writes.entrySet()) {
+                try {
+                    if (write.getValue() != null) {
+                        writeAtomically(metaPath(write.getKey()), write.getValue());
+                    } else {
+                        Files.deleteIfExists(metaPath(write.getKey()));
+                    }
+                    written++;
+                } catch (IOException e) {
+                    LX.log("Failed to save shader cache entry " + write.getKey() + ": " + e.getMessage());
+                }
+            }
+            synchronized (this) {
+                metadataWrites += written;
+            }
+            return ok && written == writes.size();
         }
     }
     
     /**
-     * Save the cache manifest to disk
+     * Write a file through a temporary file in the same directory that is then renamed over it,
+     * so readers see either the old or the new contents and never a partial write.
      */
-    private void saveManifest() {
+    private static void writeAtomically(Path target, byte[] data) throws IOException {
+        Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
         try {
-            String manifestJson = gson.toJson(manifest);
-            Files.write(Paths.get(manifestPath), manifestJson.getBytes());
+            Files.write(temp, data);
+            try {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Identifies the driver a program binary was produced by.
+     */
+    private static String driverFingerprint(GL3 gl) {
+        return gl.glGetString(GL3.GL_VENDOR) + "|" + gl.glGetString(GL3.GL_RENDERER) + "|"
+            + gl.glGetString(GL3.GL_VERSION) + "|" + gl.glGetString(GL3.GL_SHADING_LANGUAGE_VERSION);
+    }
+    
+    /**
+     * Whether a file still has the contents it had when an entry was cached.  A file whose size
+     * and modification time match the entry's stamp is taken as unchanged without reading it,
+     * otherwise its checksum is compared.  The program key checked when the binary is loaded
+     * catches any source change this misses.
+     */
+    private boolean isUnchanged(String path, String expectedChecksum, CacheEntry entry) {
+        String stamp = stamp(Paths.get(path));
+        if (stamp == null) {
+            return false;
+        }
+        if (stamp.equals(entry.fileStamps.get(path))) {
+            stampMatches++;
+            return true;
+        }
+        FileChecksum current = fileChecksum(path);
+        return current != null && current.checksum.equals(expectedChecksum);
+    }
+    
+    /**
+     * A file's size and modification time, or null if it doesn't exist.
+     */
+    private static String stamp(Path path) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            return attrs.size() + ":" + attrs.lastModifiedTime().toMillis();
         } catch (IOException e) {
-            LX.log("Failed to save manifest: " + e.getMessage());
+            return null;
         }
     }
     
     /**
      * Check if a cached shader is valid and up-to-date
      */
-    public boolean isCacheValid(String shaderName, String shaderDir) {
-        CacheEntry entry = manifest.entries.get(shaderName);
+    public synchronized boolean isCacheValid(String shaderName, String shaderDir) {
+        CacheEntry entry = manifest.entries.get(cacheKey(shaderName, shaderDir));
         if (entry == null || !entry.isValid) {
             return false;
         }
         
         try {
-            // Check main shader file
+            // Check main shader file and dependency files
             String shaderPath = shaderDir + File.separator + shaderName + ".vtx";
-            if (!Files.exists(Paths.get(shaderPath))) {
-                return false;
-            }
-            
-            long currentModified = Files.getLastModifiedTime(Paths.get(shaderPath)).toMillis();
-            if (currentModified > entry.lastModified) {
+            if (!isUnchanged(shaderPath, entry.sourceChecksum, entry)) {
                 return false;
             }
-            
-            // Check dependency files
             for (Map.Entry<String, String> dep : entry.dependencies.entrySet()) {
-                String depPath = dep.getKey();
-                String expectedChecksum = dep.getValue();
-                
-                if (!Files.exists(Paths.get(depPath))) {
-                    return false;
-                }
-                
-                String currentChecksum = calculateFileChecksum(depPath);
-                if (!expectedChecksum.equals(currentChecksum)) {
+                if (!isUnchanged(dep.getKey(), dep.getValue(), entry)) {
                     return false;
                 }
             }
@@ -201,74 +517,110 @@ public class ShaderCache {
     }
     
     /**
-     * Load a cached shader program and return the entry with the OpenGL program ID
+     * Load a cached shader program and return the entry with the OpenGL program ID.
+     *
+     * @param programKey Key of the source the program has to be linked from, see
+     *                   {@link ProgramPool#key}.
+     * @return null if there is no usable binary, in which case the shader has to be compiled.
      */
-    public CachedShaderResult loadCachedShader(String shaderName, GL3 gl) {
-        CacheEntry entry = manifest.entries.get(shaderName);
+    public synchronized CachedShaderResult loadCachedShader(String shaderName, String shaderDir, String programKey,
+                                                            GL3 gl) {
+        String key = cacheKey(shaderName, shaderDir);
+        CacheEntry entry = manifest.entries.get(key);
         if (entry == null || !entry.isValid) {
             cacheMisses++;
             return null;
         }
+        if (!Objects.equals(entry.programKey, programKey)) {
+            LX.log("Cached shader " + shaderName + " was built from different source, will recompile");
+            invalidate(key);
+            cacheMisses++;
+            return null;
+        }
+        if (!Objects.equals(entry.driverFingerprint, driverFingerprint(gl))) {
+            LX.log("Cached shader " + shaderName + " was built by a different driver, will recompile");
+            invalidate(key);
+            cacheMisses++;
+            return null;
+        }
         
+        int programId = 0;
         try {
-            // Load binary cache file
-            String cacheFile = cacheDir + File.separator + shaderName + ".cache";
-            if (!Files.exists(Paths.get(cacheFile))) {
-                LX.log("Cache file missing for " + shaderName + ", invalidating entry");
-                invalidateShader(shaderName);
-                cacheMisses++;
-                return null;
+            // Load binary cache file, unless it's still waiting to be written
+            byte[] cacheData = pendingBinaries.get(key);
+            if (cacheData == null) {
+                Path cacheFile = binaryPath(key);
+                if (!Files.exists(cacheFile)) {
+                    LX.log("Cache file missing for " + shaderName + ", invalidating entry");
+                    invalidate(key);
+                    cacheMisses++;
+                    return null;
+                }
+                cacheData = Files.readAllBytes(cacheFile);
             }
-            
-            byte[] cacheData = Files.readAllBytes(Paths.get(cacheFile));
-            if (cacheData.length == 0) {
-                LX.log("Empty cache file for " + shaderName + ", invalidating entry");
-                invalidateShader(shaderName);
+            if (cacheData.length == 0 || !checksum(cacheData).equals(entry.binaryChecksum)) {
+                LX.log("Corrupt cache file for " + shaderName + ", invalidating entry");
+                invalidate(key);
                 cacheMisses++;
                 return null;
             }
             
-            entry.programBinary = cacheData;
-            
             // Create OpenGL program from cached binary
-            int programId = gl.glCreateProgram();
+            programId = gl.glCreateProgram();
+            ByteBuffer binaryBuffer = ByteBuffer.wrap(cacheData);
+            gl.glProgramBinary(programId, entry.programFormat, binaryBuffer, cacheData.length);
             
-            if (entry.programBinary != null && entry.programBinary.length > 0) {
-                ByteBuffer binaryBuffer = ByteBuffer.wrap(entry.programBinary);
-                gl.glProgramBinary(programId, entry.programFormat, binaryBuffer, entry.programBinary.length);
-                
-                // Verify the program loaded correctly
-                IntBuffer status = IntBuffer.allocate(1);
-                gl.glGetProgramiv(programId, GL_LINK_STATUS, status);
-                if (status.get(0) != 1) {
-                    LX.log("Cached shader binary invalid for " + shaderName + ", will recompile");
-                    gl.glDeleteProgram(programId);
-                    invalidateShader(shaderName);
-                    cacheMisses++;
-                    return null;
+            // Verify the program loaded correctly
+            String problem = null;
+            IntBuffer status = IntBuffer.allocate(1);
+            gl.glGetProgramiv(programId, GL_LINK_STATUS, status);
+            if (status.get(0) != 1) {
+                problem = "binary rejected by the driver";
+            }
+            
+            // The binary has to match what was recorded when it was cached.
+            if (problem == null && !Objects.equals(entry.varying, capturedVarying(gl, programId))) {
+                problem = "captured varyings changed";
+            }
+            if (problem == null) {
+                for (Map.Entry<String, Integer> uniform : entry.uniformLocations.entrySet()) {
+                    int location = gl.glGetUniformLocation(programId, uniform.getKey());
+                    if (uniform.getValue() == null || location != uniform.getValue()) {
+                        problem = "uniform " + uniform.getKey() + " moved";
+                        break;
+                    }
                 }
-                
-                // Validate program can be used
+            }
+            
+            // Validate program can be used
+            if (problem == null) {
                 gl.glValidateProgram(programId);
                 gl.glGetProgramiv(programId, GL3.GL_VALIDATE_STATUS, status);
                 if (status.get(0) != 1) {
-                    LX.log("Cached shader program validation failed for " + shaderName + ", will recompile");
-                    gl.glDeleteProgram(programId);
-                    invalidateShader(shaderName);
-                    cacheMisses++;
-                    return null;
+                    problem = "validation failed";
                 }
             }
             
+            if (problem != null) {
+                LX.log("Cached shader " + shaderName + " unusable (" + problem + "), will recompile");
+                gl.glDeleteProgram(programId);
+                invalidate(key);
+                cacheMisses++;
+                return null;
+            }
+            
             cacheHits++;
             LX.log("Successfully loaded cached shader: " + shaderName);
             return new CachedShaderResult(entry, programId);
             
         } catch (Exception e) {
             LX.log("Error loading cached shader " + shaderName + ": " + e.getMessage());
+            if (programId > 0) {
+                gl.glDeleteProgram(programId);
+            }
             // Invalidate corrupted cache entry
             try {
-                invalidateShader(shaderName);
+                invalidate(key);
             } catch (Exception invalidateEx) {
                 LX.log("Failed to invalidate corrupted cache entry: " + invalidateEx.getMessage());
             }
@@ -278,87 +630,152 @@ public class ShaderCache {
     }
     
     /**
-     * Cache a compiled shader program
+     * Cache a compiled shader program.  The program should have been linked with
+     * GL_PROGRAM_BINARY_RETRIEVABLE_HINT set.  Nothing is cached if the driver doesn't support
+     * program binaries.  The source files are checksummed and the binary fetched without holding
+     * the cache's lock, and the binary is written along with the metadata by the writer thread.
+     *
+     * @param programKey Key of the source the program was linked from, see {@link ProgramPool#key}.
      */
-    public void cacheShader(String shaderName, String shaderDir, int programId, 
+    public void cacheShader(String shaderName, String shaderDir, String programKey, int programId,
                            Map<String, Integer> uniformLocations, JsonObject isfMetadata, 
                            Set<String> dependencies, GL3 gl) {
         try {
+            // Check if program binary is supported
+            IntBuffer binaryFormats = IntBuffer.allocate(1);
+            gl.glGetIntegerv(GL3.GL_NUM_PROGRAM_BINARY_FORMATS, binaryFormats);
+            if (binaryFormats.get(0) <= 0) {
+                LX.log("Program binaries not supported by the driver, not caching " + shaderName);
+                return;
+            }
+            
             CacheEntry entry = new CacheEntry();
             entry.shaderName = shaderName;
+            entry.shaderDir = shaderDir;
+            entry.programKey = programKey;
+            entry.driverFingerprint = driverFingerprint(gl);
             entry.uniformLocations = new HashMap<>(uniformLocations);
             entry.isfMetadata = isfMetadata;
             
             // Calculate checksums for main file and dependencies
             String mainShaderPath = shaderDir + File.separator + shaderName + ".vtx";
-            entry.sourceChecksum = calculateFileChecksum(mainShaderPath);
+            FileChecksum main = fileChecksum(mainShaderPath);
+            if (main == null) {
+                return;
+            }
+            entry.sourceChecksum = main.checksum;
+            entry.fileStamps.put(mainShaderPath, main.stamp);
             entry.lastModified = Files.getLastModifiedTime(Paths.get(mainShaderPath)).toMillis();
             
             // Store dependency checksums
             for (String depPath : dependencies) {
-                String checksum = calculateFileChecksum(depPath);
-                entry.dependencies.put(depPath, checksum);
+                FileChecksum dep = fileChecksum(depPath);
+                entry.dependencies.put(depPath, dep != null ? dep.checksum : "");
+                if (dep != null) {
+                    entry.fileStamps.put(depPath, dep.stamp);
+                }
             }
             
-            // Check if program binary is supported
-            IntBuffer binaryFormats = IntBuffer.allocate(1);
-            gl.glGetIntegerv(GL3.GL_NUM_PROGRAM_BINARY_FORMATS, binaryFormats);
-            LX.log("Number of supported binary formats: " + binaryFormats.get(0));
-            
             // Get program binary
             IntBuffer binaryLength = IntBuffer.allocate(1);
             gl.glGetProgramiv(programId, GL3.GL_PROGRAM_BINARY_LENGTH, binaryLength);
             LX.log("Program binary length for " + shaderName + ": " + binaryLength.get(0));
+            if (binaryLength.get(0) <= 0) {
+                LX.log("Program binary not retrievable for " + shaderName);
+                return;
+            }
             
-            if (binaryLength.get(0) > 0) {
-                ByteBuffer binaryBuffer = ByteBuffer.allocate(binaryLength.get(0));
-                IntBuffer binaryFormat = IntBuffer.allocate(1);
-                IntBuffer actualLength = IntBuffer.allocate(1);
-                
-                gl.glGetProgramBinary(programId, binaryLength.get(0), actualLength, binaryFormat, binaryBuffer);
-                
-                int actualLen = actualLength.get(0);
-                LX.log("Actual program binary length: " + actualLen);
-                
-                if (actualLen > 0) {
-                    entry.programBinary = new byte[actualLen];
-                    binaryBuffer.rewind(); // Reset buffer position
-                    binaryBuffer.get(entry.programBinary);
-                    entry.programFormat = binaryFormat.get(0);
-                    
-                    // Save binary to cache file
-                    String cacheFile = cacheDir + File.separator + shaderName + ".cache";
-                    Files.write(Paths.get(cacheFile), entry.programBinary);
-                    
-                    // Update manifest
-                    manifest.entries.put(shaderName, entry);
-                    saveManifest();
-                    
-                    LX.log("Successfully cached compiled shader: " + shaderName + " (" + entry.programBinary.length + " bytes)");
-                } else {
-                    LX.log("Program binary retrieval failed for " + shaderName + " - no data returned");
-                }
-            } else {
-                LX.log("Program binary not supported or shader not linked properly for " + shaderName);
-                // Even if we can't cache the binary, we can still cache the metadata
-                manifest.entries.put(shaderName, entry);
-                saveManifest();
-                LX.log("Cached shader metadata (no binary) for: " + shaderName);
+            ByteBuffer binaryBuffer = ByteBuffer.allocate(binaryLength.get(0));
+            IntBuffer binaryFormat = IntBuffer.allocate(1);
+            IntBuffer actualLength = IntBuffer.allocate(1);
+            gl.glGetProgramBinary(programId, binaryLength.get(0), actualLength, binaryFormat, binaryBuffer);
+            
+            int actualLen = actualLength.get(0);
+            if (actualLen <= 0) {
+                LX.log("Program binary retrieval failed for " + shaderName + " - no data returned");
+                return;
+            }
+            entry.programBinary = new byte[actualLen];
+            binaryBuffer.rewind(); // Reset buffer position
+            binaryBuffer.get(entry.programBinary);
+            entry.programFormat = binaryFormat.get(0);
+            entry.binaryChecksum = checksum(entry.programBinary);
+            entry.varying = capturedVarying(gl, programId);
+            
+            String key = cacheKey(shaderName, shaderDir);
+            synchronized (this) {
+                pendingBinaries.put(key, entry.programBinary);
+                manifest.entries.put(key, entry);
+                queueWrite(key, entry);
             }
             
+            LX.log("Successfully cached compiled shader: " + shaderName + " (" + entry.programBinary.length + " bytes)");
+            entry.programBinary = null;
+            
         } catch (Exception e) {
             LX.log("Failed to cache shader " + shaderName + ": " + e.getMessage());
         }
     }
     
     /**
-     * Calculate SHA-256 checksum of a file
+     * The name and type of a linked program's captured varying, or null if it doesn't capture
+     * exactly one.
+     */
+    private static String capturedVarying(GL3 gl, int programId) {
+        int[] count = new int[1];
+        gl.glGetProgramiv(programId, GL3.GL_TRANSFORM_FEEDBACK_VARYINGS, count, 0);
+        if (count[0] != 1) {
+            return null;
+        }
+        int[] length = new int[1];
+        int[] size = new int[1];
+        int[] type = new int[1];
+        byte[] name = new byte[64];
+        gl.glGetTransformFeedbackVarying(programId, 0, name.length, length, 0, size, 0, type, 0, name, 0);
+        return new String(name, 0, length[0], java.nio.charset.StandardCharsets.UTF_8) + ":" + type[0];
+    }
+    
+    /**
+     * Calculate SHA-256 checksum of a file, reusing the last one computed while the file's size
+     * and modification time are unchanged.
+     *
+     * @return null if the file can't be read.
+     */
+    private FileChecksum fileChecksum(String filePath) {
+        Path path = Paths.get(filePath);
+        // Stamped before reading, so a write during the read makes the stamp stale, not the checksum.
+        String stamp = stamp(path);
+        if (stamp == null) {
+            return null;
+        }
+        FileChecksum memo;
+        synchronized (checksums) {
+            memo = checksums.get(filePath);
+            if (memo != null && memo.stamp.equals(stamp)) {
+                checksumsReused++;
+                return memo;
+            }
+        }
+        try {
+            memo = new FileChecksum(stamp, checksum(Files.readAllBytes(path)));
+        } catch (IOException e) {
+            LX.log("Failed to calculate checksum for " + filePath + ": " + e.getMessage());
+            return null;
+        }
+        synchronized (checksums) {
+            filesHashed++;
+            checksums.put(filePath, memo);
+        }
+        return memo;
+    }
+
+    /**
+     * Calculate SHA-256 checksum of some data
      */
-    private String calculateFileChecksum(String filePath) {
+    private static String checksum(byte[] data) {
         try {
             MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            byte[] fileBytes = Files.readAllBytes(Paths.get(filePath));
-            byte[] hash = digest.digest(fileBytes);
+            byte[] hash = digest.digest(data);
             StringBuilder hexString = new StringBuilder();
             for (byte b : hash) {
                 String hex = Integer.toHexString(0xff & b);
@@ -368,16 +785,24 @@ public class ShaderCache {
                 hexString.append(hex);
             }
             return hexString.toString();
-        } catch (NoSuchAlgorithmException | IOException e) {
-            LX.log("Failed to calculate checksum for " + filePath + ": " + e.getMessage());
+        } catch (NoSuchAlgorithmException e) {
             return "";
         }
     }
     
     /**
-     * Clear all cached shaders
+     * Clear all cached shaders.  Waits for a flush in progress, so none of its files are written
+     * after the cache is cleared.
      */
     public void clearCache() {
+        synchronized (flushLock) {
+            synchronized (this) {
+                clearFiles();
+            }
+        }
+    }
+    
+    private void clearFiles() {
         try {
             // Delete all cache files
             File cacheDirectory = new File(cacheDir);
@@ -385,16 +810,17 @@ public class ShaderCache {
                 File[] files = cacheDirectory.listFiles();
                 if (files != null) {
                     for (File file : files) {
-                        if (file.getName().endsWith(".cache")) {
+                        if (file.getName().endsWith(".cache") || file.getName().endsWith(META_EXTENSION)) {
                             file.delete();
                         }
                     }
                 }
             }
             
-            // Clear manifest
+            // Clear entries, dropping any queued writes
             manifest = new CacheManifest();
-            saveManifest();
+            pendingWrites.clear();
+            pendingBinaries.clear();
             
             // Reset statistics
             cacheHits = 0;
@@ -410,52 +836,41 @@ public class ShaderCache {
     /**
      * Remove a specific shader from cache
      */
-    public void invalidateShader(String shaderName) {
+    public synchronized void invalidateShader(String shaderName, String shaderDir) {
+        invalidate(cacheKey(shaderName, shaderDir));
+    }
+    
+    private synchronized void invalidate(String key) {
         try {
-            manifest.entries.remove(shaderName);
-            
-            String cacheFile = cacheDir + File.separator + shaderName + ".cache";
-            Files.deleteIfExists(Paths.get(cacheFile));
+            manifest.entries.remove(key);
             
-            saveManifest();
-            LX.log("Invalidated cached shader: " + shaderName);
+            // Deleted by the writer, after any write of the binary it has already taken.
+            pendingBinaries.put(key, null);
+            queueWrite(key, null);
+            LX.log("Invalidated cached shader: " + key);
             
         } catch (Exception e) {
-            LX.log("Failed to invalidate shader " + shaderName + ": " + e.getMessage());
+            LX.log("Failed to invalidate shader " + key + ": " + e.getMessage());
         }
     }
     
     /**
      * Get cache statistics
      */
-    public String getCacheStats() {
+    public synchronized String getCacheStats() {
         int totalEntries = manifest.entries.size();
         int totalRequests = cacheHits + cacheMisses;
         double hitRate = totalRequests > 0 ? (double) cacheHits / totalRequests * 100 : 0;
-        
-        return String.format("Cache: %d entries, %d hits, %d misses (%.1f%% hit rate)", 
-                           totalEntries, cacheHits, cacheMisses, hitRate);
-    }
-    
-    /**
-     * Check if OpenGL context has changed (different driver/version)
-     */
-    public boolean isGLContextValid(GL3 gl) {
-        String currentVendor = gl.glGetString(GL3.GL_VENDOR);
-        String currentRenderer = gl.glGetString(GL3.GL_RENDERER);
-        String currentVersion = gl.glGetString(GL3.GL_VERSION);
-        
-        if (manifest.glVendor == null) {
-            // First time - store current context info
-            manifest.glVendor = currentVendor;
-            manifest.glRenderer = currentRenderer;
-            manifest.glVersion = currentVersion;
-            saveManifest();
-            return true;
+        int hashed;
+        int reused;
+        synchronized (checksums) {
+            hashed = filesHashed;
+            reused = checksumsReused;
         }
         
-        return Objects.equals(manifest.glVendor, currentVendor) &&
-               Objects.equals(manifest.glRenderer, currentRenderer) &&
-               Objects.equals(manifest.glVersion, currentVersion);
+        return String.format("Cache: %d entries, %d hits, %d misses (%.1f%% hit rate), "
+                           + "%d files hashed, %d checksums reused, %d unchanged by size and time, %d metadata writes",
+                           totalEntries, cacheHits, cacheMisses, hitRate, hashed, reused, stampMatches,
+                           metadataWrites);
     }
 }
\ No newline at end of file
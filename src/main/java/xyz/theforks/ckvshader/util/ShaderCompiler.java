@@ -0,0 +1,268 @@
+package xyz.theforks.ckvshader.util;
+
+import com.google.gson.JsonObject;
+import com.jogamp.opengl.DefaultGLCapabilitiesChooser;
+import com.jogamp.opengl.GL;
+import com.jogamp.opengl.GL3;
+import com.jogamp.opengl.GLCapabilities;
+import com.jogamp.opengl.GLDrawableFactory;
+import com.jogamp.opengl.GLOffscreenAutoDrawable;
+import com.jogamp.opengl.GLProfile;
+import heronarts.lx.LX;
+import xyz.theforks.ckvshader.patterns.CkVShader;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static com.jogamp.opengl.GL2ES2.GL_VERTEX_SHADER;
+import static com.jogamp.opengl.GL2ES3.GL_INTERLEAVED_ATTRIBS;
+import static com.jogamp.opengl.GL2ES3.GL_PROGRAM_BINARY_RETRIEVABLE_HINT;
+
+/**
+ * Compiles and links shaders in the background so a reload doesn't stall rendering.  Jobs run on
+ * a small pool of threads, each with its own GL context that shares objects with the main
+ * offscreen context, so the programs they create can be used by the {@link GLWorker}.  Each job
+ * ends with a glFinish, so its programs are complete before another context uses them.  The
+ * pool size defaults to the ckvshader.compileThreads system property, or up to 4 threads
+ * depending on the number of cores.
+ *
+ * If a shared context can't be created the jobs run on the GL worker instead, which still
+ * keeps the engine thread from waiting for the compile.
+ */
+public class ShaderCompiler {
+
+  private static ShaderCompiler instance;
+
+  /**
+   * A shader's source as it is compiled, with includes expanded and the color epilogue injected.
+   */
+  public static class Source {
+    public final GLUtil.ShaderPathInfo pathInfo;
+    // Empty if the file couldn't be loaded.
+    public final String text;
+    public final Set<String> dependencies;
+    // The ISF metadata, or null.
+    public final JsonObject metadata;
+
+    private Source(GLUtil.ShaderPathInfo pathInfo, String text, Set<String> dependencies) {
+      this.pathInfo = pathInfo;
+      this.text = text;
+      this.dependencies = dependencies;
+      this.metadata = IsfParameters.parse(text);
+    }
+
+    /**
+     * Read and preprocess a .vtx file.  Doesn't make any GL calls.
+     */
+    public static Source load(GLUtil.ShaderPathInfo pathInfo) {
+      try {
+        GLUtil.ShaderLoadResult result = GLUtil.loadShaderWithDependencies(pathInfo.shaderDir, pathInfo.shaderName + ".vtx");
+        // Shaders with a vec3 outColor get the alpha threshold and packing done on the GPU.
+        return new Source(pathInfo, GLUtil.injectColorEpilogue(result.source), result.dependencies);
+      } catch (Exception ex) {
+        LX.log("Error loading shader: " + ex.getMessage());
+        return new Source(pathInfo, "", new HashSet<>());
+      }
+    }
+  }
+
+  /**
+   * Where a built program came from.
+   */
+  public enum Origin {
+    SHARED,
+    CACHE,
+    COMPILED
+  }
+
+  /**
+   * A linked program holding one reference in the {@link ProgramPool}.
+   */
+  public static class Program {
+    public final int programId;
+    // Uniform locations already known, such as those restored from the shader cache.
+    public final Map<String, Integer> knownLocations;
+    public final Origin origin;
+
+    Program(int programId, Map<String, Integer> knownLocations, Origin origin) {
+      this.programId = programId;
+      this.knownLocations = knownLocations;
+      this.origin = origin;
+    }
+  }
+
+  private final int threads;
+  private final ExecutorService executor;
+  // Each compile thread's context, created on first use.
+  private final ThreadLocal<GLOffscreenAutoDrawable> drawable = new ThreadLocal<>();
+  private volatile boolean contextFailed = false;
+
+  public static synchronized ShaderCompiler getInstance() {
+    if (instance == null) {
+      instance = new ShaderCompiler();
+    }
+    return instance;
+  }
+
+  private ShaderCompiler() {
+    int defaultThreads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+    threads = Math.max(1, Integer.getInteger("ckvshader.compileThreads", defaultThreads));
+    AtomicInteger count = new AtomicInteger();
+    executor = Executors.newFixedThreadPool(threads, r -> {
+      Thread thread = new Thread(r, "CkVShader compile " + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  public int getThreads() {
+    return threads;
+  }
+
+  /**
+   * False once a shared context couldn't be created, so jobs run on the GL worker between frames.
+   */
+  public boolean hasSharedContexts() {
+    return !contextFailed;
+  }
+
+  /**
+   * Run a job with a GL context current.
+   */
+  public <T> CompletableFuture<T> submit(Function<GL3, T> job) {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    executor.execute(() -> {
+      GL3 gl = sharedContext();
+      if (gl == null) {
+        GLWorker.getInstance().submit(() -> job.apply(GLWorker.getGL()))
+          .whenComplete((result, t) -> {
+            if (t != null) {
+              future.completeExceptionally(t);
+            } else {
+              future.complete(result);
+            }
+          });
+        return;
+      }
+      try {
+        T result = job.apply(gl);
+        gl.glFinish();
+        future.complete(result);
+      } catch (Throwable t) {
+        LX.log("Error in shader compile job: " + t.getMessage());
+        future.completeExceptionally(t);
+      }
+    });
+    return future;
+  }
+
+  /**
+   * Get the program for a shader from the program pool or the shader cache, or compile it.  The
+   * caller holds a reference to the returned program in the pool.  Compiled programs are added to
+   * the shader cache.
+   *
+   * @param forceReload Compile from source even if the cached copy is valid.
+   * @return The program, or null if the shader failed to compile or link.
+   */
+  public static Program build(LX lx, GL3 gl, Source source, boolean forceReload) {
+    GLUtil.ShaderPathInfo pathInfo = source.pathInfo;
+    ProgramPool programs = ProgramPool.getInstance();
+    String poolKey = ProgramPool.key(source.text, GLUtil.colorVarying(source.text));
+    int pooled = programs.acquire(poolKey);
+    if (pooled > 0) {
+      LX.log("Sharing linked program " + pooled + " for shader: " + pathInfo.fullPath);
+      return new Program(pooled, Collections.emptyMap(), Origin.SHARED);
+    }
+
+    ShaderCache shaderCache = ShaderCache.getInstance(lx);
+    boolean caching = GLUtil.isCachingEnabled();
+    if (caching && !forceReload && shaderCache.isCacheValid(pathInfo.shaderName, pathInfo.shaderDir)) {
+      // Falls through to compiling if the binary can't be used.
+      ShaderCache.CachedShaderResult cachedResult = shaderCache.loadCachedShader(pathInfo.shaderName, pathInfo.shaderDir, poolKey, gl);
+      if (cachedResult != null) {
+        LX.log("Loading shader from cache: " + pathInfo.fullPath);
+        int added = programs.add(gl, poolKey, cachedResult.programId);
+        if (added != cachedResult.programId) {
+          return new Program(added, Collections.emptyMap(), Origin.SHARED);
+        }
+        return new Program(cachedResult.programId, cachedResult.entry.uniformLocations, Origin.CACHE);
+      }
+    }
+
+    // Cache miss or forced reload - compile from source
+    LX.log("Compiling shader from source: " + pathInfo.fullPath);
+    long startNanos = System.nanoTime();
+    int program = gl.glCreateProgram();
+    try {
+      GLUtil.createShader(gl, program, source.text, GL_VERTEX_SHADER);
+      gl.glTransformFeedbackVaryings(program, 1, new String[]{GLUtil.colorVarying(source.text)}, GL_INTERLEAVED_ATTRIBS);
+      if (caching) {
+        gl.glProgramParameteri(program, GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL.GL_TRUE);
+      }
+      GLUtil.link(gl, program);
+    } catch (Exception ex) {
+      LX.log("Error creating shader: " + ex.getMessage());
+      gl.glDeleteProgram(program);
+      return null;
+    }
+    LX.log("Compiled " + pathInfo.shaderName + " in " + (System.nanoTime() - startNanos) / 1000000 + " ms");
+    int added = programs.add(gl, poolKey, program);
+    if (added != program) {
+      // Another pattern built the same source meanwhile, and has cached it.
+      LX.log("Sharing linked program " + added + " for shader: " + pathInfo.fullPath);
+      return new Program(added, Collections.emptyMap(), Origin.SHARED);
+    }
+
+    if (caching) {
+      try {
+        Map<String, Integer> locations = new HashMap<>();
+        for (String name : IsfParameters.names(source.metadata)) {
+          locations.put(name, gl.glGetUniformLocation(program, name));
+        }
+        LX.log("Attempting to cache shader: " + pathInfo.shaderName + " with program ID: " + program);
+        shaderCache.cacheShader(pathInfo.shaderName, pathInfo.shaderDir, poolKey, program, locations,
+          source.metadata, source.dependencies, gl);
+        LX.log("Cache attempt completed for: " + pathInfo.shaderName);
+      } catch (Exception ex) {
+        LX.log("Warning: Failed to cache shader " + pathInfo.shaderName + ": " + ex.getMessage());
+        ex.printStackTrace();
+      }
+    }
+    return new Program(program, Collections.emptyMap(), Origin.COMPILED);
+  }
+
+  /**
+   * The calling compile thread's context, created and made current on first use.
+   *
+   * @return null if it can't be created.
+   */
+  private GL3 sharedContext() {
+    GLOffscreenAutoDrawable current = drawable.get();
+    if (current == null && !contextFailed) {
+      try {
+        GLProfile glp = CkVShader.glDrawable.getGLProfile();
+        GLCapabilities caps = (GLCapabilities) CkVShader.glDrawable.getChosenGLCapabilities().cloneMutable();
+        GLDrawableFactory factory = GLDrawableFactory.getFactory(glp);
+        current = factory.createOffscreenAutoDrawable(factory.getDefaultDevice(), caps, new DefaultGLCapabilitiesChooser(), 1, 1);
+        current.setSharedAutoDrawable(CkVShader.glDrawable);
+        current.display();
+        current.getContext().makeCurrent();
+        drawable.set(current);
+        LX.log("Created shared GL context for " + Thread.currentThread().getName());
+      } catch (Exception e) {
+        LX.log("Could not create shared GL context, compiling on the GL thread: " + e.getMessage());
+        current = null;
+        contextFailed = true;
+      }
+    }
+    return current != null ? current.getGL().getGL3() : null;
+  }
+}
@@ -0,0 +1,177 @@
+package xyz.theforks.ckvshader.util;
+
+import heronarts.lx.LX;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Optional startup phase that builds every shader before the show starts, so the first use of a
+ * shader mid-show doesn't have to compile it.  Enabled with the ckvshader.prewarm system property.
+ *
+ * Every .vtx in the CkVShader shader directory and in the shaders directory of each plugin is
+ * built on the {@link ShaderCompiler} threads in parallel, with one shader per thread in flight.
+ * If the compiler has fallen back to the GL worker only one shader is queued at a time, so frames
+ * are drawn between the builds instead of waiting for all of them.  Programs are loaded from the shader
+ * cache when it is valid and compiled and cached otherwise.  Each one is kept in the
+ * {@link ProgramPool}, so patterns loading it later share it instead of building it again.
+ * Progress and timing are logged as shaders finish, and the pool stays warm for the life of the
+ * process.
+ */
+public class ShaderPrewarmer {
+
+  public static final String PROPERTY = "ckvshader.prewarm";
+
+  private static ShaderPrewarmer instance;
+
+  private final LX lx;
+  private final ShaderCompiler compiler = ShaderCompiler.getInstance();
+  // Shaders not submitted yet, and the number submitted but not done.
+  private final Queue<GLUtil.ShaderPathInfo> remaining = new ArrayDeque<>();
+  private int inFlight = 0;
+  private final AtomicInteger done = new AtomicInteger();
+  private final AtomicInteger compiled = new AtomicInteger();
+  private final AtomicInteger cached = new AtomicInteger();
+  private final AtomicInteger failed = new AtomicInteger();
+  private int total = 0;
+  private long startNanos;
+  private volatile long elapsedMs = -1;
+
+  /**
+   * Start pre-warming if the ckvshader.prewarm property is set.  Only the first call does
+   * anything.  Needs the shared GL context to exist.
+   */
+  public static synchronized void startIfEnabled(LX lx) {
+    if (instance != null || !Boolean.getBoolean(PROPERTY)) {
+      return;
+    }
+    instance = new ShaderPrewarmer(lx);
+    instance.start();
+  }
+
+  /**
+   * A one line summary for operators, or null if pre-warming isn't enabled.
+   */
+  public static synchronized String getStatus() {
+    if (instance == null) {
+      return null;
+    }
+    return instance.status();
+  }
+
+  private ShaderPrewarmer(LX lx) {
+    this.lx = lx;
+  }
+
+  private void start() {
+    List<GLUtil.ShaderPathInfo> shaders = findShaders();
+    total = shaders.size();
+    startNanos = System.nanoTime();
+    LX.log("Pre-warming " + total + " shaders on " + compiler.getThreads() + " compile threads");
+    if (total == 0) {
+      elapsedMs = 0;
+      return;
+    }
+    synchronized (this) {
+      remaining.addAll(shaders);
+    }
+    submitNext();
+  }
+
+  /**
+   * Submit shaders until the compiler has as many as it can work on.
+   */
+  private synchronized void submitNext() {
+    final int window = compiler.hasSharedContexts() ? compiler.getThreads() : 1;
+    while (inFlight < window && !remaining.isEmpty()) {
+      final GLUtil.ShaderPathInfo pathInfo = remaining.poll();
+      inFlight++;
+      compiler.submit(gl -> {
+        long shaderStart = System.nanoTime();
+        ShaderCompiler.Program program = ShaderCompiler.build(lx, gl, ShaderCompiler.Source.load(pathInfo), false);
+        report(pathInfo, program, (System.nanoTime() - shaderStart) / 1000000);
+        return program;
+      }).whenComplete((program, t) -> {
+        if (t != null) {
+          report(pathInfo, null, 0);
+        }
+        synchronized (this) {
+          inFlight--;
+        }
+        submitNext();
+      });
+    }
+  }
+
+  private void report(GLUtil.ShaderPathInfo pathInfo, ShaderCompiler.Program program, long ms) {
+    String result;
+    if (program == null) {
+      failed.incrementAndGet();
+      result = "failed";
+    } else if (program.origin == ShaderCompiler.Origin.COMPILED) {
+      compiled.incrementAndGet();
+      result = "compiled";
+    } else {
+      cached.incrementAndGet();
+      result = program.origin == ShaderCompiler.Origin.CACHE ? "from cache" : "already loaded";
+    }
+    int n = done.incrementAndGet();
+    LX.log(String.format("Pre-warm %d/%d: %s %s in %d ms", n, total, pathInfo.fullPath, result, ms));
+    if (n == total) {
+      elapsedMs = (System.nanoTime() - startNanos) / 1000000;
+      LX.log(status());
+    }
+  }
+
+  private String status() {
+    if (elapsedMs < 0) {
+      return String.format("Shader pre-warm running: %d/%d done", done.get(), total);
+    }
+    return String.format("Shader pre-warm complete: %d shaders in %d ms, %d compiled, %d cached or shared, %d failed",
+      total, elapsedMs, compiled.get(), cached.get(), failed.get());
+  }
+
+  /**
+   * The .vtx files in the CkVShader shader directory and every plugin's shaders directory.
+   */
+  private List<GLUtil.ShaderPathInfo> findShaders() {
+    List<GLUtil.ShaderPathInfo> shaders = new ArrayList<>();
+    Set<String> seenDirs = new LinkedHashSet<>();
+    addShaders(new File(GLUtil.shaderDir(lx)), "CkVShader", shaders, seenDirs);
+    File[] plugins = new File(lx.getMediaPath() + File.separator + "Data").listFiles(File::isDirectory);
+    if (plugins != null) {
+      Arrays.sort(plugins);
+      for (File plugin : plugins) {
+        addShaders(new File(plugin, "shaders"), plugin.getName(), shaders, seenDirs);
+      }
+    }
+    return shaders;
+  }
+
+  private void addShaders(File dir, String pluginName, List<GLUtil.ShaderPathInfo> shaders, Set<String> seenDirs) {
+    try {
+      if (!dir.isDirectory() || !seenDirs.add(dir.getCanonicalPath())) {
+        return;
+      }
+    } catch (IOException e) {
+      return;
+    }
+    File[] files = dir.listFiles((d, name) -> name.endsWith(".vtx"));
+    if (files == null) {
+      return;
+    }
+    Arrays.sort(files);
+    for (File file : files) {
+      String name = file.getName().substring(0, file.getName().length() - 4);
+      shaders.add(new GLUtil.ShaderPathInfo(dir.getPath(), name, pluginName + "/shaders/" + name + ".vtx"));
+    }
+  }
+}
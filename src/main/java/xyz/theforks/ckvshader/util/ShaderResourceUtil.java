@@ -111,6 +111,9 @@ public class ShaderResourceUtil {
         }
 
         resourceFilesCopied = true;
+
+        // Build every shader up front if requested, now that the defaults are on disk.
+        ShaderPrewarmer.startIfEnabled(lx);
     }
 
     /**
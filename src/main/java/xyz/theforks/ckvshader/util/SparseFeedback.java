@@ -0,0 +1,322 @@
+package xyz.theforks.ckvshader.util;
+
+import com.jogamp.opengl.GL3;
+import com.jogamp.opengl.util.GLBuffers;
+import heronarts.lx.LX;
+import heronarts.lx.parameter.CompoundParameter;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import static com.jogamp.opengl.GL.GL_ARRAY_BUFFER;
+import static com.jogamp.opengl.GL2ES2.GL_LINK_STATUS;
+import static com.jogamp.opengl.GL2ES2.GL_VERTEX_SHADER;
+import static com.jogamp.opengl.GL2ES3.GL_INTERLEAVED_ATTRIBS;
+import static com.jogamp.opengl.GL2ES3.GL_QUERY_RESULT;
+import static com.jogamp.opengl.GL2ES3.GL_STATIC_READ;
+import static com.jogamp.opengl.GL2ES3.GL_TRANSFORM_FEEDBACK_BUFFER;
+import static com.jogamp.opengl.GL3.GL_GEOMETRY_SHADER;
+import static com.jogamp.opengl.GL3.GL_PRIMITIVES_GENERATED;
+
+/**
+ * Sparse transform feedback output for shaders whose output is mostly transparent.  The shader's
+ * vertex stage is linked with a geometry shader that only emits a (point number, packed color)
+ * record for points that are visible, so only those records are read back.  A
+ * GL_PRIMITIVES_GENERATED query reports how many records were written.
+ *
+ * Only shaders with packed output (see packColor.vti) are supported, since the record carries
+ * the packed ARGB value.  The records are expanded into a dense packed buffer with every other
+ * point cleared, so the rest of the pattern treats the result like a normal packed readback.
+ *
+ * The variant is linked in the background by the {@link ShaderCompiler}, and the normal program
+ * is drawn until it is ready.
+ */
+public class SparseFeedback {
+
+  public static final String RECORD_VARYING = "outRecord";
+
+  // Keeps visible points only.  Points whose packed alpha is 0 are dropped, opaque black is kept
+  // since it still covers the layers below.
+  static String geometryShader(String colorVarying) {
+    return
+      "#version 330\n" +
+      "layout(points) in;\n" +
+      "layout(points, max_vertices = 1) out;\n" +
+      "flat in uint " + colorVarying + "[];\n" +
+      "flat out uvec2 outRecord;\n" +
+      "void main() {\n" +
+      "  uint c = " + colorVarying + "[0];\n" +
+      "  if ((c >> 24u) != 0u) {\n" +
+      "    outRecord = uvec2(uint(gl_PrimitiveIDIn), c);\n" +
+      "    EmitVertex();\n" +
+      "    EndPrimitive();\n" +
+      "  }\n" +
+      "}\n";
+  }
+
+  private static final int RECORD_INTS = 2;
+
+  /**
+   * A variant linked by the compiler, waiting to be picked up on the GL worker.
+   */
+  private static class Built {
+    final int baseProgramId;
+    final long request;
+    // 0 if the variant failed to build.
+    final int programId;
+
+    Built(int baseProgramId, long request, int programId) {
+      this.baseProgramId = baseProgramId;
+      this.request = request;
+      this.programId = programId;
+    }
+  }
+
+  // Program the sparse variant was built for, so it is only rebuilt after a reload.
+  private int builtFor = -1;
+  // Program the variant being built or last built is for.
+  private int requestedFor = -1;
+  // Incremented by every build, so a variant for a program ID that was reused isn't picked up.
+  private long request = 0;
+  private final AtomicReference<Built> built = new AtomicReference<>();
+  private volatile boolean disposed = false;
+  private int programId = 0;
+  private int fTimeLoc = -1;
+  private int alphaThreshLoc = -1;
+  private final UniformTable uniforms = new UniformTable();
+
+  private int bufferId = 0;
+  private int queryId = 0;
+  private int capacity = -1;
+  private IntBuffer records;
+  private int[] expanded = new int[0];
+  private final int[] recordCount = new int[1];
+
+  // Statistics
+  private long statFrames = 0;
+  private long statRecords = 0;
+  private long statPoints = 0;
+
+  /**
+   * Start building the sparse variant of a program if it hasn't been built yet, and pick it up
+   * once the compiler is done.  Must be called on the GL worker.
+   *
+   * @param baseProgramId The normal program.  The variant is rebuilt when this changes.
+   * @param vertexSource Supplies the vertex shader source, only called when building.
+   * @param positionLoc Attribute location of the positions in the normal program, so the
+   *                    variant can share its vertex array.
+   * @param params ISF parameters by uniform name.
+   * @return true if the sparse program is usable.
+   */
+  public boolean prepare(GL3 gl, int baseProgramId, Supplier<String> vertexSource, int positionLoc,
+                         Map<String, CompoundParameter> params) {
+    Built result = built.getAndSet(null);
+    if (result != null) {
+      if (result.request == request) {
+        deleteProgram(gl);
+        builtFor = result.baseProgramId;
+        programId = result.programId;
+        if (programId != 0) {
+          fTimeLoc = gl.glGetUniformLocation(programId, "fTime");
+          alphaThreshLoc = gl.glGetUniformLocation(programId, GLUtil.ALPHA_THRESHOLD_UNIFORM);
+          uniforms.build(gl, programId, params, Collections.emptyMap());
+        }
+      } else if (result.programId != 0) {
+        gl.glDeleteProgram(result.programId);
+      }
+    }
+    if (baseProgramId == builtFor) {
+      return programId != 0;
+    }
+    if (baseProgramId != requestedFor) {
+      requestedFor = baseProgramId;
+      final long thisRequest = ++request;
+      final String source = vertexSource.get();
+      ShaderCompiler.getInstance().submit(compileGl -> link(compileGl, source, positionLoc))
+        .exceptionally(t -> 0)
+        .thenAccept(program -> {
+          Built previous = built.getAndSet(new Built(baseProgramId, thisRequest, program));
+          // Nobody will pick the variant up after dispose, so delete it on the worker.
+          if (disposed || previous != null) {
+            GLWorker.getInstance().execute(() -> {
+              GL3 workerGl = GLWorker.getGL();
+              if (previous != null && previous.programId != 0) {
+                workerGl.glDeleteProgram(previous.programId);
+              }
+              if (disposed) {
+                deleteBuilt(workerGl);
+              }
+            });
+          }
+        });
+    }
+    return false;
+  }
+
+  /**
+   * Link the sparse variant of a vertex shader.
+   *
+   * @return The program, or 0 if it failed to build.
+   */
+  private static int link(GL3 gl, String source, int positionLoc) {
+    int program = gl.glCreateProgram();
+    try {
+      if (source == null || source.isEmpty()) {
+        throw new Exception("no vertex shader source");
+      }
+      GLUtil.createShader(gl, program, source, GL_VERTEX_SHADER);
+      GLUtil.createShader(gl, program, geometryShader(GLUtil.colorVarying(source)), GL_GEOMETRY_SHADER);
+      if (positionLoc >= 0) {
+        gl.glBindAttribLocation(program, positionLoc, PointVertexArray.POSITION_ATTRIBUTE);
+      }
+      gl.glTransformFeedbackVaryings(program, 1, new String[] {RECORD_VARYING}, GL_INTERLEAVED_ATTRIBS);
+      GLUtil.link(gl, program);
+      int[] status = new int[1];
+      gl.glGetProgramiv(program, GL_LINK_STATUS, status, 0);
+      if (status[0] == 0) {
+        throw new Exception("link failed");
+      }
+    } catch (Exception e) {
+      LX.log("Sparse output unavailable for this shader: " + e.getMessage());
+      gl.glDeleteProgram(program);
+      return 0;
+    }
+    return program;
+  }
+
+  /**
+   * Force the sparse program to be rebuilt, for example after a reload that may have reused the
+   * normal program's ID.
+   */
+  public void invalidate() {
+    builtFor = -1;
+    requestedFor = -1;
+    request++;
+  }
+
+  public int getProgramId() {
+    return programId;
+  }
+
+  public int getTimeLocation() {
+    return fTimeLoc;
+  }
+
+  public int getAlphaThresholdLocation() {
+    return alphaThreshLoc;
+  }
+
+  public UniformTable getUniforms() {
+    return uniforms;
+  }
+
+  /**
+   * Bind the record buffer for a draw of numPoints points and start counting the records.  Must
+   * be called with the GL context current, before glBeginTransformFeedback.
+   */
+  public void begin(GL3 gl, int numPoints) {
+    if (bufferId == 0) {
+      int[] ids = new int[1];
+      gl.glGenBuffers(1, ids, 0);
+      bufferId = ids[0];
+      gl.glGenQueries(1, ids, 0);
+      queryId = ids[0];
+    }
+    if (numPoints != capacity) {
+      // Buffer can be resized so it is always allocated as mutable storage.
+      gl.glBindBuffer(GL_ARRAY_BUFFER, bufferId);
+      gl.glBufferData(GL_ARRAY_BUFFER, (long) Math.max(1, numPoints) * RECORD_INTS * Integer.BYTES, null, GL_STATIC_READ);
+      gl.glBindBuffer(GL_ARRAY_BUFFER, 0);
+      records = GLBuffers.newDirectIntBuffer(Math.max(1, numPoints) * RECORD_INTS);
+      expanded = new int[numPoints];
+      capacity = numPoints;
+    }
+    gl.glBindBufferBase(GL_TRANSFORM_FEEDBACK_BUFFER, 0, bufferId);
+    gl.glBeginQuery(GL_PRIMITIVES_GENERATED, queryId);
+  }
+
+  /**
+   * Stop counting records.  Call after glEndTransformFeedback.
+   */
+  public void endDraw(GL3 gl) {
+    gl.glEndQuery(GL_PRIMITIVES_GENERATED);
+  }
+
+  /**
+   * Read back the records of the last draw and expand them into dest as packed colors, one per
+   * point, with points that were not emitted cleared to transparent black.  Waits for the draw
+   * to complete.
+   */
+  public void read(GL3 gl, IntBuffer dest) {
+    gl.glGetQueryObjectuiv(queryId, GL_QUERY_RESULT, recordCount, 0);
+    final int n = Math.min(recordCount[0], capacity);
+    records.clear();
+    if (n > 0) {
+      gl.glBindBuffer(GL_TRANSFORM_FEEDBACK_BUFFER, bufferId);
+      gl.glGetBufferSubData(GL_TRANSFORM_FEEDBACK_BUFFER, 0, (long) n * RECORD_INTS * Integer.BYTES, records);
+    }
+    final int[] expanded = this.expanded;
+    Arrays.fill(expanded, 0);
+    for (int i = 0; i < n; i++) {
+      final int point = records.get(i * RECORD_INTS);
+      if (point >= 0 && point < expanded.length) {
+        expanded[point] = records.get(i * RECORD_INTS + 1);
+      }
+    }
+    dest.clear();
+    dest.put(expanded, 0, Math.min(expanded.length, dest.capacity()));
+    dest.rewind();
+    statFrames++;
+    statRecords += n;
+    statPoints += capacity;
+  }
+
+  public String getStats() {
+    double lit = statPoints > 0 ? 100.0 * statRecords / statPoints : 0;
+    return String.format("Sparse output: %d frames, %.1f%% of points read back",
+      statFrames, lit);
+  }
+
+  public void resetStats() {
+    statFrames = 0;
+    statRecords = 0;
+    statPoints = 0;
+  }
+
+  private void deleteProgram(GL3 gl) {
+    if (programId != 0) {
+      gl.glDeleteProgram(programId);
+      programId = 0;
+    }
+  }
+
+  private void deleteBuilt(GL3 gl) {
+    Built result = built.getAndSet(null);
+    if (result != null && result.programId != 0) {
+      gl.glDeleteProgram(result.programId);
+    }
+  }
+
+  /**
+   * Release the program, buffer and query.  Must be called with the GL context current.
+   */
+  public void dispose(GL3 gl) {
+    disposed = true;
+    deleteProgram(gl);
+    deleteBuilt(gl);
+    uniforms.dispose(gl);
+    if (bufferId != 0) {
+      gl.glDeleteBuffers(1, new int[] {bufferId}, 0);
+      gl.glDeleteQueries(1, new int[] {queryId}, 0);
+      bufferId = 0;
+      queryId = 0;
+    }
+    capacity = -1;
+    builtFor = -1;
+    requestedFor = -1;
+  }
+}
@@ -0,0 +1,339 @@
+package xyz.theforks.ckvshader.util;
+
+import heronarts.lx.model.LXPoint;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Spatial level of detail for shader evaluation.  The normalized xn/yn/zn positions are divided
+ * into a voxel grid and the point nearest the centroid of each occupied voxel is chosen as its
+ * representative.  Only the representatives are evaluated on the GPU.  Every other point blends
+ * the colors of its nearest representatives from the surrounding voxels using inverse distance
+ * weights.
+ *
+ * Quality is quantized to a few grid resolutions.  Each is built once per point set on a
+ * background thread and kept, so moving the lod knob switches between cached levels instead of
+ * rebuilding, and the engine thread never waits for a build.  Until a level is ready every point
+ * is evaluated.  The weights are stored as flat primitive arrays so reconstructing a frame is a
+ * single pass, split into chunks that run in parallel on the {@link ParallelScatter} pool for
+ * large models.
+ */
+public class SpatialLod {
+
+  // Representatives blended into each reconstructed point.
+  public static final int NEIGHBORS = 4;
+  // Grid resolution along each axis of each quality level below full resolution, lowest first.
+  public static final int[] RESOLUTIONS = {8, 16, 32, 64, 128};
+
+  private static ExecutorService builder;
+
+  /**
+   * The reduction of a point set at one grid resolution.
+   */
+  private static class Level {
+    final LXPoint[] sourcePoints;
+    final int resolution;
+    final LXPoint[] representatives;
+    // For each reconstructed point, its LXPoint index and NEIGHBORS pairs of representative
+    // LXPoint index and weight in 1/256ths.  Unused slots have a weight of 0.
+    final int[] targets;
+    final int[] sources;
+    final int[] weights;
+
+    Level(LXPoint[] sourcePoints, int resolution, LXPoint[] representatives, int[] targets, int[] sources,
+          int[] weights) {
+      this.sourcePoints = sourcePoints;
+      this.resolution = resolution;
+      this.representatives = representatives;
+      this.targets = targets;
+      this.sources = sources;
+      this.weights = weights;
+    }
+  }
+
+  // Levels built for sourcePoints by index into RESOLUTIONS, null until built.  Only accessed on
+  // the engine thread.
+  private LXPoint[] sourcePoints;
+  private final Level[] levels = new Level[RESOLUTIONS.length];
+  private final CompletableFuture<?>[] building = new CompletableFuture<?>[RESOLUTIONS.length];
+  // The level whose representatives were returned by the last update, null if none.
+  private Level current;
+
+  private final ParallelScatter scatter = new ParallelScatter();
+  // The level and colors being reconstructed, only set while a pass runs.
+  private Level passLevel;
+  private int[] passColors;
+  private final ParallelScatter.Range pass = (start, end) -> reconstruct(passLevel, passColors, start, end);
+
+  private static synchronized ExecutorService getBuilder() {
+    if (builder == null) {
+      builder = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "CkVShader LOD build");
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    return builder;
+  }
+
+  /**
+   * Index into RESOLUTIONS for a quality between 0 and 1.  A quality of 1 or more evaluates every
+   * point and returns -1.
+   */
+  public static int levelFor(float quality) {
+    if (quality >= 1) {
+      return -1;
+    }
+    return Math.min(RESOLUTIONS.length - 1, (int) (Math.max(0, quality) * RESOLUTIONS.length));
+  }
+
+  /**
+   * Points that should be evaluated for the given quality.  When the reduction is off, or the
+   * level isn't built yet, this is the points array itself.  Otherwise it is the level's
+   * representatives, the same array from frame to frame.  Called on the engine thread.
+   */
+  public LXPoint[] update(LXPoint[] points, float quality) {
+    if (points != sourcePoints) {
+      sourcePoints = points;
+      Arrays.fill(levels, null);
+      Arrays.fill(building, null);
+    }
+    final int level = levelFor(quality);
+    current = null;
+    if (level < 0) {
+      return points;
+    }
+    if (levels[level] == null && building[level] == null) {
+      final int res = RESOLUTIONS[level];
+      building[level] = CompletableFuture.supplyAsync(() -> build(points, res), getBuilder());
+    }
+    if (levels[level] == null && building[level].isDone()) {
+      Level built = building[level].isCompletedExceptionally() ? null : (Level) building[level].join();
+      if (built == null) {
+        return points;
+      }
+      levels[level] = built;
+    }
+    current = levels[level];
+    return current != null ? current.representatives : points;
+  }
+
+  /**
+   * Fill in the colors of the points that were not evaluated from the representatives' colors.
+   * Does nothing unless evaluated is the current set of representatives.
+   */
+  public void reconstruct(LXPoint[] evaluated, int[] colors) {
+    final Level level = current;
+    if (level == null || evaluated != level.representatives) {
+      return;
+    }
+    passLevel = level;
+    passColors = colors;
+    try {
+      scatter.run(level.targets.length, pass);
+    } finally {
+      passLevel = null;
+      passColors = null;
+    }
+  }
+
+  private static void reconstruct(Level level, int[] colors, int start, int end) {
+    final int[] targets = level.targets;
+    final int[] sources = level.sources;
+    final int[] weights = level.weights;
+    for (int i = start; i < end; i++) {
+      int a = 0, r = 0, g = 0, b = 0;
+      for (int k = i * NEIGHBORS, last = k + NEIGHBORS; k < last; k++) {
+        final int w = weights[k];
+        if (w == 0) continue;
+        final int c = colors[sources[k]];
+        a += w * (c >>> 24);
+        r += w * ((c >>> 16) & 0xff);
+        g += w * ((c >>> 8) & 0xff);
+        b += w * (c & 0xff);
+      }
+      colors[targets[i]] = ((a >> 8) << 24) | ((r >> 8) << 16) | ((g >> 8) << 8) | (b >> 8);
+    }
+  }
+
+  private static Level build(LXPoint[] points, int res) {
+    final int n = points.length;
+    // Assign points to voxels and accumulate each voxel's centroid.
+    CellMap cellSlots = new CellMap(n);
+    int[] slotOf = new int[n];
+    int[] cellKeys = new int[n];
+    double[] sum = new double[n * 3];
+    int[] count = new int[n];
+    for (int i = 0; i < n; i++) {
+      final int key = cellKey(points[i], res);
+      int slot = cellSlots.get(key);
+      if (slot < 0) {
+        slot = cellSlots.size();
+        cellSlots.put(key, slot);
+        cellKeys[slot] = key;
+      }
+      slotOf[i] = slot;
+      sum[slot * 3] += points[i].xn;
+      sum[slot * 3 + 1] += points[i].yn;
+      sum[slot * 3 + 2] += points[i].zn;
+      count[slot]++;
+    }
+
+    // The representative of a voxel is the point nearest its centroid.
+    final int cells = cellSlots.size();
+    int[] rep = new int[cells];
+    double[] repDist = new double[cells];
+    Arrays.fill(repDist, Double.MAX_VALUE);
+    for (int i = 0; i < n; i++) {
+      final int s = slotOf[i];
+      final double d = dist2(points[i], sum[s * 3] / count[s], sum[s * 3 + 1] / count[s], sum[s * 3 + 2] / count[s]);
+      if (d < repDist[s]) {
+        repDist[s] = d;
+        rep[s] = i;
+      }
+    }
+    LXPoint[] reps = new LXPoint[cells];
+    for (int s = 0; s < cells; s++) {
+      reps[s] = points[rep[s]];
+    }
+
+    // Weights from the nearest representatives in the surrounding 3x3x3 voxels.
+    final int numTargets = n - cells;
+    int[] targets = new int[numTargets];
+    int[] sources = new int[numTargets * NEIGHBORS];
+    int[] weights = new int[numTargets * NEIGHBORS];
+    int[] nearest = new int[NEIGHBORS];
+    double[] nearestDist = new double[NEIGHBORS];
+    double[] w = new double[NEIGHBORS];
+    int t = 0;
+    for (int i = 0; i < n; i++) {
+      final LXPoint p = points[i];
+      if (rep[slotOf[i]] == i) continue;
+      Arrays.fill(nearest, -1);
+      Arrays.fill(nearestDist, Double.MAX_VALUE);
+      final int key = cellKeys[slotOf[i]];
+      final int cx = key % res, cy = (key / res) % res, cz = key / (res * res);
+      for (int dz = -1; dz <= 1; dz++) {
+        for (int dy = -1; dy <= 1; dy++) {
+          for (int dx = -1; dx <= 1; dx++) {
+            final int x = cx + dx, y = cy + dy, z = cz + dz;
+            if (x < 0 || y < 0 || z < 0 || x >= res || y >= res || z >= res) continue;
+            final int s = cellSlots.get(x + res * (y + res * z));
+            if (s < 0) continue;
+            insertNearest(s, dist2(p, reps[s].xn, reps[s].yn, reps[s].zn), nearest, nearestDist);
+          }
+        }
+      }
+      double total = 0;
+      for (int k = 0; k < NEIGHBORS && nearest[k] >= 0; k++) {
+        w[k] = 1.0 / Math.max(1e-9, Math.sqrt(nearestDist[k]));
+        total += w[k];
+      }
+      // Quantize so the weights of each point sum to exactly 256.
+      int remaining = 256;
+      targets[t] = p.index;
+      for (int k = 0; k < NEIGHBORS && nearest[k] >= 0; k++) {
+        final boolean last = k == NEIGHBORS - 1 || nearest[k + 1] < 0;
+        final int q = last ? remaining : (int) Math.round(256 * w[k] / total);
+        sources[t * NEIGHBORS + k] = reps[nearest[k]].index;
+        weights[t * NEIGHBORS + k] = Math.min(q, remaining);
+        remaining -= weights[t * NEIGHBORS + k];
+      }
+      t++;
+    }
+
+    return new Level(points, res, reps, targets, sources, weights);
+  }
+
+  /**
+   * Voxel key to slot map with open addressing, so the build doesn't box every lookup.  Keys are
+   * never negative.
+   */
+  private static final class CellMap {
+    private final int[] keys;
+    private final int[] values;
+    private final int mask;
+    private int size = 0;
+
+    CellMap(int maxSize) {
+      int capacity = Integer.highestOneBit(Math.max(1, maxSize) * 2 - 1) << 1;
+      keys = new int[capacity];
+      values = new int[capacity];
+      Arrays.fill(keys, -1);
+      mask = capacity - 1;
+    }
+
+    int size() {
+      return size;
+    }
+
+    /**
+     * The slot of a key, or -1 if it has none.
+     */
+    int get(int key) {
+      for (int i = mix(key) & mask; ; i = (i + 1) & mask) {
+        if (keys[i] == key) return values[i];
+        if (keys[i] < 0) return -1;
+      }
+    }
+
+    void put(int key, int value) {
+      int i = mix(key) & mask;
+      while (keys[i] >= 0 && keys[i] != key) {
+        i = (i + 1) & mask;
+      }
+      if (keys[i] < 0) {
+        keys[i] = key;
+        size++;
+      }
+      values[i] = value;
+    }
+
+    private static int mix(int key) {
+      final int h = key * 0x9E3779B9;
+      return h ^ (h >>> 16);
+    }
+  }
+
+  private static int cellKey(LXPoint p, int res) {
+    return cell(p.xn, res) + res * (cell(p.yn, res) + res * cell(p.zn, res));
+  }
+
+  private static int cell(float v, int res) {
+    return Math.max(0, Math.min(res - 1, (int) (v * res)));
+  }
+
+  private static double dist2(LXPoint p, double x, double y, double z) {
+    final double dx = p.xn - x, dy = p.yn - y, dz = p.zn - z;
+    return dx * dx + dy * dy + dz * dz;
+  }
+
+  private static void insertNearest(int slot, double d, int[] nearest, double[] nearestDist) {
+    if (d >= nearestDist[NEIGHBORS - 1]) return;
+    int k = NEIGHBORS - 1;
+    while (k > 0 && nearestDist[k - 1] > d) {
+      nearest[k] = nearest[k - 1];
+      nearestDist[k] = nearestDist[k - 1];
+      k--;
+    }
+    nearest[k] = slot;
+    nearestDist[k] = d;
+  }
+
+  /**
+   * Number of points evaluated compared to the full point set.
+   */
+  public String getStats() {
+    final Level level = current;
+    if (level == null) {
+      return "LOD: off";
+    }
+    int total = level.sourcePoints.length;
+    return String.format("LOD grid %d: %d of %d points evaluated (%.1fx reduction)",
+      level.resolution, level.representatives.length, total,
+      level.representatives.length > 0 ? (double) total / level.representatives.length : 1.0);
+  }
+}
@@ -0,0 +1,282 @@
+package xyz.theforks.ckvshader.util;
+
+import com.jogamp.opengl.GL;
+import com.jogamp.opengl.GL3;
+import com.jogamp.opengl.util.texture.Texture;
+import com.jogamp.opengl.util.texture.TextureData;
+import com.jogamp.opengl.util.texture.awt.AWTTextureIO;
+import heronarts.lx.LX;
+import xyz.theforks.ckvshader.patterns.CkVShader;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process wide cache of the GL textures decoded from image files.  Textures are keyed by the
+ * file's canonical path and modification time, so every pattern using the same image shares one
+ * texture and switching back to a recent image doesn't decode it again, while an edited file is
+ * picked up on its next load.
+ *
+ * Textures are reference counted.  Unreferenced textures stay resident for reuse until the
+ * resident size exceeds the budget, then the least recently used are deleted.  The budget defaults
+ * to the ckvshader.textureBudgetMB system property, 256 MB if it isn't set.
+ *
+ * Images are decoded on a small pool of decoder threads and only uploaded on the
+ * {@link GLWorker}, so loading a large image holds up neither the engine nor the GL jobs.  The
+ * methods taking a GL3 must be called on the GL worker.
+ */
+public class TextureCache {
+
+  public static final long DEFAULT_BUDGET_MB = 256;
+
+  private static TextureCache instance;
+
+  // An image decoded and converted for upload.
+  private static class Decoded {
+    final TextureData data;
+    final int width;
+    final int height;
+    final int bytesPerPixel;
+
+    Decoded(TextureData data, int width, int height, int bytesPerPixel) {
+      this.data = data;
+      this.width = width;
+      this.height = height;
+      this.bytesPerPixel = bytesPerPixel;
+    }
+  }
+
+  private static class Entry {
+    final String key;
+    final String path;
+    final Texture texture;
+    final long bytes;
+    int refs = 0;
+    // A newer version of the file was loaded, so this one is deleted with its last user.
+    boolean stale = false;
+
+    Entry(String key, String path, Texture texture, long bytes) {
+      this.key = key;
+      this.path = path;
+      this.texture = texture;
+      this.bytes = bytes;
+    }
+  }
+
+  // In access order, so iteration starts at the least recently used entry.
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private final Map<Texture, Entry> byTexture = new IdentityHashMap<>();
+  private long residentBytes = 0;
+  private long budgetBytes = Long.getLong("ckvshader.textureBudgetMB", DEFAULT_BUDGET_MB) * 1024 * 1024;
+  private final ExecutorService decoder;
+  // Hardware limits, queried on the GL worker before the first decode.
+  private CompletableFuture<GLUtil.TextureLimits> limits;
+
+  public static synchronized TextureCache getInstance() {
+    if (instance == null) {
+      instance = new TextureCache();
+    }
+    return instance;
+  }
+
+  private TextureCache() {
+    int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+    AtomicInteger count = new AtomicInteger();
+    decoder = Executors.newFixedThreadPool(threads, r -> {
+      Thread thread = new Thread(r, "CkVShader texture decode " + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Set how many bytes of unreferenced textures may stay resident.  Textures in use are never
+   * evicted, so the resident size can exceed it.
+   */
+  public synchronized void setBudgetBytes(GL3 gl, long budgetBytes) {
+    this.budgetBytes = budgetBytes;
+    evict(gl);
+  }
+
+  public synchronized long getBudgetBytes() {
+    return budgetBytes;
+  }
+
+  /**
+   * Get the texture for an image file without waiting for it.  A resident texture is returned
+   * right away.  Otherwise the image is decoded on a decoder thread and uploaded on the GL worker.
+   * Images larger than the max texture size are scaled down.  The texture samples with nearest
+   * filtering and repeats.  Every texture returned must be given back with {@link #release}.
+   *
+   * @return Completes with the texture, or with null if the file can't be read.  Never completes
+   *         exceptionally.
+   */
+  public CompletableFuture<Texture> acquire(File file) {
+    String path;
+    try {
+      path = file.getCanonicalPath();
+    } catch (IOException ioex) {
+      path = file.getAbsolutePath();
+    }
+    final String canonicalPath = path;
+    final String key = path + "@" + file.lastModified();
+    synchronized (this) {
+      Entry entry = entries.get(key);
+      if (entry != null) {
+        GLUtil.TextureMonitor.recordCacheHit();
+        entry.refs++;
+        return CompletableFuture.completedFuture(entry.texture);
+      }
+    }
+    GLUtil.TextureMonitor.recordCacheMiss();
+
+    return getLimits()
+      .handleAsync((limits, t) -> decode(file, limits), decoder)
+      .thenCompose(decoded -> decoded == null ? CompletableFuture.<Texture>completedFuture(null) :
+        GLWorker.getInstance().submit(() -> upload(GLWorker.getGL(), key, canonicalPath, decoded)))
+      .exceptionally(t -> {
+        LX.log("Error loading texture: " + file.getPath() + " : " + t.getMessage());
+        return null;
+      });
+  }
+
+  private synchronized CompletableFuture<GLUtil.TextureLimits> getLimits() {
+    if (limits == null) {
+      limits = GLWorker.getInstance().submit(() -> {
+        GLUtil.TextureLimits queried = GLUtil.queryTextureLimits(GLWorker.getGL());
+        LX.log("OpenGL Texture Limits: " + queried.toString());
+        return queried;
+      });
+    }
+    return limits;
+  }
+
+  /**
+   * Read an image and convert it for upload.  Doesn't make any GL calls.
+   *
+   * @param limits Hardware limits, may be null if they couldn't be queried.
+   * @return null if the file can't be read.
+   */
+  private static Decoded decode(File file, GLUtil.TextureLimits limits) {
+    BufferedImage image;
+    try {
+      image = ImageIO.read(file);
+    } catch (IOException ioex) {
+      LX.log("Error loading texture: " + file.getPath() + " : " + ioex.getMessage());
+      return null;
+    }
+    if (image == null) {
+      LX.log("Unsupported texture image: " + file.getPath());
+      return null;
+    }
+    if (limits != null && !GLUtil.validateTextureSize(image.getWidth(), image.getHeight(), limits)) {
+      image = GLUtil.resizeTextureIfNeeded(image, limits.maxTextureSize);
+    }
+    int bytesPerPixel = image.getColorModel().hasAlpha() ? 4 : 3;
+    TextureData data = AWTTextureIO.newTextureData(CkVShader.glDrawable.getGLProfile(), image, false);
+    return new Decoded(data, image.getWidth(), image.getHeight(), bytesPerPixel);
+  }
+
+  /**
+   * Create the texture for a decoded image, or take a reference to the resident one if another
+   * load of the same file finished first.
+   */
+  private synchronized Texture upload(GL3 gl, String key, String path, Decoded decoded) {
+    Entry entry = entries.get(key);
+    if (entry != null) {
+      decoded.data.flush();
+      entry.refs++;
+      return entry.texture;
+    }
+
+    Texture texture = new Texture(gl, decoded.data);
+    decoded.data.flush();
+    GLUtil.checkGLError(gl, "texture creation");
+    texture.bind(gl);
+    gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MAG_FILTER, GL.GL_NEAREST);
+    gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MIN_FILTER, GL.GL_NEAREST);
+    gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_WRAP_S, GL.GL_REPEAT);
+    gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_WRAP_T, GL.GL_REPEAT);
+    GLUtil.checkGLError(gl, "texture parameter setting");
+
+    GLUtil.TextureMonitor.recordTextureCreation(decoded.width, decoded.height, decoded.bytesPerPixel);
+    entry = new Entry(key, path, texture, (long) decoded.width * decoded.height * decoded.bytesPerPixel);
+    entry.refs = 1;
+    entries.put(key, entry);
+    byTexture.put(texture, entry);
+    residentBytes += entry.bytes;
+
+    // Older versions of the file can't be loaded again.
+    Iterator<Entry> it = entries.values().iterator();
+    while (it.hasNext()) {
+      Entry stale = it.next();
+      if (stale != entry && stale.path.equals(path)) {
+        stale.stale = true;
+        if (stale.refs <= 0) {
+          it.remove();
+          destroy(gl, stale);
+        }
+      }
+    }
+    evict(gl);
+    return texture;
+  }
+
+  /**
+   * Give up a texture returned by {@link #acquire}.  It stays resident for reuse while the
+   * cache is within its budget.
+   */
+  public synchronized void release(GL3 gl, Texture texture) {
+    Entry entry = byTexture.get(texture);
+    if (entry == null) {
+      return;
+    }
+    if (--entry.refs <= 0 && entry.stale) {
+      entries.remove(entry.key);
+      destroy(gl, entry);
+      return;
+    }
+    evict(gl);
+  }
+
+  /**
+   * Delete unreferenced textures, least recently used first, until the cache fits its budget.
+   */
+  private void evict(GL3 gl) {
+    Iterator<Entry> it = entries.values().iterator();
+    while (residentBytes > budgetBytes && it.hasNext()) {
+      Entry entry = it.next();
+      if (entry.refs <= 0) {
+        it.remove();
+        destroy(gl, entry);
+      }
+    }
+  }
+
+  private void destroy(GL3 gl, Entry entry) {
+    byTexture.remove(entry.texture);
+    residentBytes -= entry.bytes;
+    entry.texture.destroy(gl);
+    GLUtil.checkGLError(gl, "texture cleanup");
+    GLUtil.TextureMonitor.recordTextureDisposal(entry.bytes);
+  }
+
+  public synchronized String getStats() {
+    int users = 0;
+    for (Entry entry : entries.values()) {
+      users += entry.refs;
+    }
+    return String.format("Texture cache: %d textures, %d references, %d KB resident of %d KB budget",
+      entries.size(), users, residentBytes / 1024, budgetBytes / 1024);
+  }
+}
@@ -0,0 +1,69 @@
+package xyz.theforks.ckvshader.util;
+
+import com.jogamp.opengl.GL3;
+import heronarts.lx.LX;
+
+import java.util.function.IntSupplier;
+
+import static com.jogamp.opengl.GL.GL_TEXTURE0;
+import static com.jogamp.opengl.GL.GL_TEXTURE_2D;
+
+/**
+ * A 2D texture owned by the pattern, bound to a sampler uniform for each draw.  The texture is
+ * supplied as a GL texture ID, 0 for none, so it can change from frame to frame, for example to
+ * step through a sequence of frames.  The texture ID is part of the input fingerprint.
+ */
+public class TextureInput implements TransformFeedbackEngine.InputProvider {
+
+  private final String uniform;
+  private final int unit;
+  private final IntSupplier texture;
+  private int location = -1;
+
+  /**
+   * @param uniform Name of the sampler uniform.
+   * @param unit Texture unit the sampler reads from.
+   * @param texture Supplies the texture ID to bind, or 0.
+   */
+  public TextureInput(String uniform, int unit, IntSupplier texture) {
+    this.uniform = uniform;
+    this.unit = unit;
+    this.texture = texture;
+  }
+
+  @Override
+  public void locate(GL3 gl, int programId) {
+    location = gl.glGetUniformLocation(programId, uniform);
+    if (location < 0) {
+      return;
+    }
+    if (!GLUtil.validateTextureUnitUsage(unit, GLUtil.queryTextureLimits(gl))) {
+      location = -1;
+      return;
+    }
+    gl.glUniform1i(location, unit);
+    LX.log("Found " + uniform + " at location: " + location);
+  }
+
+  @Override
+  public void addTo(InputFingerprint inputs) {
+    if (location >= 0) {
+      inputs.add(texture.getAsInt());
+    }
+  }
+
+  @Override
+  public void bind(GL3 gl) {
+    final int id = texture.getAsInt();
+    if (location >= 0 && id > 0) {
+      gl.glActiveTexture(GL_TEXTURE0 + unit);
+      gl.glBindTexture(GL_TEXTURE_2D, id);
+      GLUtil.checkGLError(gl, uniform + " binding");
+    }
+  }
+
+  @Override
+  public void dispose(GL3 gl) {
+    // The texture belongs to the pattern.
+  }
+}
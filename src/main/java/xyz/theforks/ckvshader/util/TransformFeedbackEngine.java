@@ -0,0 +1,698 @@
+package xyz.theforks.ckvshader.util;
+
+import com.jogamp.opengl.GL3;
+import com.jogamp.opengl.util.GLBuffers;
+import heronarts.lx.LX;
+import heronarts.lx.LXModelComponent;
+import heronarts.lx.model.LXPoint;
+import heronarts.lx.parameter.BooleanParameter;
+import heronarts.lx.parameter.CompoundParameter;
+import heronarts.lx.parameter.LXParameter;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+import static com.jogamp.opengl.GL.GL_POINTS;
+import static com.jogamp.opengl.GL2ES3.GL_RASTERIZER_DISCARD;
+
+/**
+ * Evaluates a vertex shader once per LED with transform feedback and copies the result into a
+ * pattern's colors.  This is the hot path shared by all of the shader patterns.  The engine owns
+ * the LED positions on the GPU, the linked program and its uniform table, the feedback buffers
+ * and their readback, and the optimizations layered on top: skipping frames whose inputs did not
+ * change, spatial level of detail, sparse output, reduced rate evaluation, and the batched and
+ * async run modes.  The parameters controlling those are created here and added to the pattern
+ * with {@link #addParameters}.
+ *
+ * What differs between patterns is what else the shader reads, such as an image, a sequence of
+ * frames, the audio meter or fluid state.  Those are plugged in as {@link InputProvider}s.
+ *
+ * All GL work runs on the {@link GLWorker}, the engine thread never makes the context current.
+ * Methods that take a GL3 must be called on the worker.
+ */
+public class TransformFeedbackEngine implements GLFrameScheduler.Job {
+
+  /**
+   * An input to the shader besides its ISF parameters, usually one or more textures.  All
+   * methods are called on the GL thread with the context current.
+   */
+  public interface InputProvider {
+    /**
+     * Look up this input's uniforms in a newly linked program.  The program is in use, so
+     * samplers can be pointed at their texture units here since that is part of program state.
+     * May be called for more than one program built from the same source.
+     */
+    void locate(GL3 gl, int programId);
+
+    /**
+     * Refresh per-frame state before the inputs are compared, such as new audio data.
+     */
+    default void update(GL3 gl) {
+    }
+
+    /**
+     * Add the values the shader output depends on to the fingerprint.
+     */
+    void addTo(InputFingerprint inputs);
+
+    /**
+     * Bind textures for this frame's draw.
+     */
+    void bind(GL3 gl);
+
+    /**
+     * Called after each draw, for example to swap ping-pong textures.
+     */
+    default void afterDraw(GL3 gl) {
+    }
+
+    /**
+     * Release any GL resources owned by the input.
+     */
+    void dispose(GL3 gl);
+  }
+
+  public final CompoundParameter speed = new CompoundParameter("speed", 1f, 0f, 20f);
+  public final CompoundParameter alphaThresh = new CompoundParameter("alfTh", 0.1f, -0.1f, 1f).
+    setDescription("Intensity values below threshold will use transparency.");
+  public final BooleanParameter pipelined = new BooleanParameter("pipe", false).
+    setDescription("Read back shader output one frame late so the engine does not wait on the GPU.");
+  public final BooleanParameter batched = new BooleanParameter("batch", false).
+    setDescription("Draw together with the other batched shader patterns under a single GL context switch.  Shows the draw submitted on the previous frame.");
+  public final BooleanParameter async = new BooleanParameter("async", false).
+    setDescription("Render on the GL thread and show the latest finished frame instead of waiting for it.");
+  public final CompoundParameter evalRate = new CompoundParameter("evalHz", 0, 0, 60).
+    setDescription("Evaluate the shader at this rate and blend the frames in between.  0 evaluates every frame.");
+  public final CompoundParameter lodQuality = new CompoundParameter("lod", 1f, 0f, 1f).
+    setDescription("Spatial detail.  Below 1 only a representative subset of points is evaluated and the rest are blended from it.");
+  public final BooleanParameter sparse = new BooleanParameter("sparse", false).
+    setDescription("Only read back the points that are not fully transparent.  Requires a shader with packed output.");
+  public final BooleanParameter stats = new BooleanParameter("stats", false).
+    setMode(BooleanParameter.Mode.MOMENTARY).
+    setDescription("Log the statistics of the engine and the buffers and programs it shares.");
+
+  private final LX lx;
+  // The pattern.  Its model is the channel's view when it has one.
+  private final LXModelComponent component;
+  private final List<InputProvider> providers = new ArrayList<>();
+
+  // The shader's ID on the GPU.
+  private int programId = -1;
+  private int fTimeLoc = -2;
+  private int alphaThreshLoc = -1;
+  private boolean packedOutput = false;
+  // For each ISF parameter, the uniform location in the linked program.
+  private final Map<String, Integer> paramLocations = new HashMap<String, Integer>();
+  // Flattened parameter/location table used to upload only the values that changed.
+  private final UniformTable uniforms = new UniformTable();
+  // Linked programs shared with other patterns running the same shader.
+  private final ProgramPool programs = ProgramPool.getInstance();
+  private Map<String, CompoundParameter> params = Collections.emptyMap();
+  // Source of the current vertex shader, used to build sparse variants of the program.
+  private Supplier<String> vertexSource = () -> null;
+  private String loadedSource;
+  // Incremented by every load, so only the latest one is swapped in.
+  private final AtomicLong loadGeneration = new AtomicLong();
+  private final AtomicReference<PendingProgram> pendingProgram = new AtomicReference<>();
+
+  // LED positions on the GPU, shared with the other patterns evaluating the same points.  Only
+  // re-uploaded when the model geometry changes.
+  private final PositionBufferRegistry positionBuffers;
+  private ModelPositionBuffer positionBuffer;
+  // Position attribute setup, recorded once per linked program.
+  private final PointVertexArray vertexArray;
+  // Destination for transform feedback buffer when copied back from the GPU
+  private FloatBuffer tfbBuffer;
+  // Destination for shaders that output packed ARGB colors, see packColor.vti.
+  private IntBuffer tfbPacked;
+  // Ring of GPU transform feedback buffers, optionally read back one frame late.
+  private final FeedbackReadback readback = new FeedbackReadback();
+  // Inputs of the last evaluation.  Frames with identical inputs reuse the previous output.
+  private final InputFingerprint inputs = new InputFingerprint();
+  private boolean reuseOutput = false;
+  // Keyframes blended together when the shader runs below the frame rate.
+  private final KeyframeInterpolator keyframes = new KeyframeInterpolator();
+  // Converts rgb float output to colors for shaders without packed output.
+  private final ColorKernel colorKernel = new ColorKernel();
+  // Representative points evaluated when the lod parameter is below 1.
+  private final SpatialLod lod = new SpatialLod();
+  // Geometry shader variant of the program that only outputs lit points.
+  private final SparseFeedback sparseFeedback = new SparseFeedback();
+  private int sparseLocated = 0;
+  private boolean sparseDrawn = false;
+  // Frame being rendered on the GL thread in async mode, null if there is none.
+  private CompletableFuture<Void> frameJob;
+  private double asyncDeltaMs = 0;
+
+  private double totalTime = 0.0;
+
+  /**
+   * Allocate the CPU side of the engine.  GL resources are created on first use.
+   *
+   * @param component The pattern whose model points are evaluated.
+   */
+  public TransformFeedbackEngine(LX lx, LXModelComponent component) {
+    this.lx = lx;
+    this.component = component;
+    LXPoint[] points = component.getModel().points;
+    positionBuffers = PositionBufferRegistry.getInstance(lx);
+    positionBuffer = positionBuffers.acquire(points);
+    vertexArray = new PointVertexArray(positionBuffer);
+    // This is just a destination, make it large enough to accept all the vertex data.  The vertex
+    // shader always outputs the all the elements.
+    tfbBuffer = GLBuffers.newDirectFloatBuffer(points.length * 3);
+    tfbPacked = GLBuffers.newDirectIntBuffer(points.length);
+  }
+
+  /**
+   * Add the engine's parameters to the pattern.
+   *
+   * @param add Usually the pattern's addParameter.
+   */
+  public void addParameters(BiConsumer<String, LXParameter> add) {
+    add.accept("speed", speed);
+    add.accept("alfTh", alphaThresh);
+    add.accept("pipe", pipelined);
+    add.accept("batch", batched);
+    add.accept("async", async);
+    add.accept("evalHz", evalRate);
+    add.accept("lod", lodQuality);
+    add.accept("sparse", sparse);
+    add.accept("stats", stats);
+  }
+
+  public void addInput(InputProvider provider) {
+    providers.add(provider);
+  }
+
+  public int getProgramId() {
+    return programId;
+  }
+
+  public Map<String, Integer> getParamLocations() {
+    return paramLocations;
+  }
+
+  /**
+   * A program built in the background, waiting to be swapped in on the next frame.
+   */
+  private static class PendingProgram {
+    final long generation;
+    final ShaderCompiler.Source source;
+    final IsfParameters isf;
+    final boolean clearSliders;
+    final boolean slidersUpdated;
+    final Runnable onSwap;
+    // Null until built, or if the shader failed to build.
+    ShaderCompiler.Program program;
+
+    PendingProgram(long generation, ShaderCompiler.Source source, IsfParameters isf, boolean clearSliders,
+                   boolean slidersUpdated, Runnable onSwap) {
+      this.generation = generation;
+      this.source = source;
+      this.isf = isf;
+      this.clearSliders = clearSliders;
+      this.slidersUpdated = slidersUpdated;
+      this.onSwap = onSwap;
+    }
+  }
+
+  /**
+   * Load a shader in the background.  The program is shared with other patterns running the
+   * same source when possible, otherwise it is loaded from the shader cache when the cached copy
+   * is valid, and compiled by the {@link ShaderCompiler} as a last resort.  The current program
+   * keeps rendering until the new one is ready.  The next {@link #run} after that swaps in the
+   * program, its uniform table and the pattern's ISF sliders in one step, and releases the old
+   * program.  If the shader fails to build the current program is kept.  Of several loads in
+   * flight only the latest is swapped in.
+   *
+   * @param forceReload Compile from source even if the cached copy is valid.
+   * @param clearSliders Remove the existing sliders, resetting their values.
+   * @param updateSlidersNow Update the sliders before returning instead of with the swap, for
+   *                         example when a project is loading and the saved slider values are
+   *                         restored next.
+   * @param onSwap Run on the engine thread after the new program is swapped in, may be null.
+   */
+  public void loadShader(GLUtil.ShaderPathInfo pathInfo, IsfParameters isf, boolean forceReload,
+                         boolean clearSliders, boolean updateSlidersNow, Runnable onSwap) {
+    PendingProgram pending = new PendingProgram(loadGeneration.incrementAndGet(), ShaderCompiler.Source.load(pathInfo),
+      isf, clearSliders, updateSlidersNow, onSwap);
+    if (updateSlidersNow) {
+      if (clearSliders) isf.clear();
+      isf.update(pending.source.metadata);
+    }
+    ShaderCompiler.getInstance().submit(gl -> {
+      pending.program = ShaderCompiler.build(lx, gl, pending.source, forceReload);
+      return pending;
+    }).thenAccept(built -> {
+      if (built.generation != loadGeneration.get()) {
+        discard(built);
+        return;
+      }
+      discard(pendingProgram.getAndSet(built));
+    });
+  }
+
+  /**
+   * Swap in the program of the latest load if it is ready.  Called on the engine thread at the
+   * start of a frame.
+   */
+  private void swapPendingProgram() {
+    PendingProgram pending = pendingProgram.getAndSet(null);
+    if (pending == null) {
+      return;
+    }
+    if (pending.generation != loadGeneration.get()) {
+      discard(pending);
+      return;
+    }
+    if (pending.program == null) {
+      LX.log("Shader failed to build, keeping the current program: " + pending.source.pathInfo.fullPath);
+      return;
+    }
+    if (!pending.slidersUpdated) {
+      if (pending.clearSliders) pending.isf.clear();
+      pending.isf.update(pending.source.metadata);
+    }
+    GLWorker.getInstance().invokeAndWait(() ->
+      setProgram(GLWorker.getGL(), pending.program.programId, () -> pending.source.text, pending.isf.getParameters(),
+        pending.program.knownLocations));
+    if (pending.onSwap != null) {
+      pending.onSwap.run();
+    }
+  }
+
+  /**
+   * Release the program of a load that was superseded before it was swapped in.
+   */
+  private void discard(PendingProgram pending) {
+    if (pending != null && pending.program != null) {
+      GLWorker.getInstance().execute(() -> programs.release(GLWorker.getGL(), pending.program.programId));
+    }
+  }
+
+  /**
+   * Switch to a linked program, looking up its uniforms and those of the inputs.
+   *
+   * @param source Supplies the vertex shader source when it is needed.
+   * @param knownLocations Uniform locations that are already known, such as those restored from
+   *                       the shader cache.
+   */
+  public void setProgram(GL3 gl, int program, Supplier<String> source, Map<String, CompoundParameter> params,
+                         Map<String, Integer> knownLocations) {
+    if (programId > 0 && programId != program) {
+      programs.release(gl, programId);
+    }
+    programId = program;
+    vertexSource = source;
+    loadedSource = null;
+    this.params = params;
+    fTimeLoc = gl.glGetUniformLocation(programId, "fTime");
+    alphaThreshLoc = gl.glGetUniformLocation(programId, GLUtil.ALPHA_THRESHOLD_UNIFORM);
+    packedOutput = GLUtil.isPackedOutput(gl, programId);
+    vertexArray.setProgram(gl, programId);
+    LX.log("Found fTimeLoc at: " + fTimeLoc);
+
+    paramLocations.clear();
+    for (String name : params.keySet()) {
+      Integer loc = knownLocations.get(name);
+      paramLocations.put(name, loc != null ? loc : gl.glGetUniformLocation(programId, name));
+      LX.log("Parameter: " + name + " at location: " + paramLocations.get(name));
+    }
+    uniforms.build(gl, programId, params, paramLocations);
+    locateInputs(gl, programId);
+    // GL object IDs may have been reused by the reload.
+    inputs.invalidate();
+    sparseFeedback.invalidate();
+    sparseLocated = 0;
+  }
+
+  /**
+   * Release the current program, deleting it unless other patterns share it.  Nothing is drawn
+   * until another one is set.
+   */
+  public void deleteProgram(GL3 gl) {
+    if (programId > 0) {
+      programs.release(gl, programId);
+    }
+    programId = -1;
+  }
+
+  /**
+   * Force the next frame to be evaluated, for example after a texture was replaced.
+   */
+  public void invalidate() {
+    inputs.invalidate();
+  }
+
+  /**
+   * Restart the shader clock.
+   */
+  public void resetTime() {
+    totalTime = 0;
+  }
+
+  private void locateInputs(GL3 gl, int program) {
+    if (providers.isEmpty()) return;
+    gl.glUseProgram(program);
+    for (InputProvider provider : providers) {
+      provider.locate(gl, program);
+    }
+    gl.glUseProgram(0);
+  }
+
+  private String loadVertexSource() {
+    if (loadedSource == null) {
+      loadedSource = vertexSource.get();
+    }
+    return loadedSource;
+  }
+
+  /**
+   * Evaluate the shader for this frame and write the result into colors.  Depending on the
+   * parameters the evaluation is batched with other patterns, rendered asynchronously, or run
+   * at a reduced rate with the frames in between blended.
+   */
+  public void run(double deltaMs, int[] colors) {
+    boolean pointsChanged = false;
+    if (frameJob == null || frameJob.isDone()) {
+      // Only switch points while no frame is drawing with them.
+      pointsChanged = selectPoints();
+    }
+    swapPendingProgram();
+    keyframes.setRate(evalRate.getValue());
+    if (keyframes.isEnabled()) {
+      runInterpolated(deltaMs, colors);
+      return;
+    }
+    if (batched.isOn()) {
+      // The frame scheduler draws what is submitted here at the start of the next frame, so the
+      // colors come from the batch that ran at the start of this one.  Until a batch has drawn
+      // the current points, draw them here instead of showing an empty or stale frame.
+      GLFrameScheduler scheduler = GLFrameScheduler.getInstance(lx);
+      if (pointsChanged || !scheduler.drewInLastBatch(this)) {
+        glRun(deltaMs);
+      }
+      scheduler.submit(this);
+    } else if (async.isOn()) {
+      runAsync(deltaMs, colors);
+      return;
+    } else {
+      glRun(deltaMs);
+    }
+    updateColors(colors);
+  }
+
+  /**
+   * Evaluate the shader at the reduced rate and blend the frames in between.  Each evaluation
+   * steps the shader clock by one interval.  Evaluations run synchronously, batch and async only
+   * apply when the shader runs every frame.
+   */
+  private void runInterpolated(double deltaMs, int[] colors) {
+    if (keyframes.advance(deltaMs)) {
+      if (keyframes.needsPriming()) {
+        evaluateKeyframe(deltaMs, colors);
+      }
+      evaluateKeyframe(keyframes.getIntervalMs(), colors);
+    }
+    keyframes.interpolate(positionBuffer.getPoints(), colors);
+    lod.reconstruct(positionBuffer.getPoints(), colors);
+  }
+
+  private void evaluateKeyframe(double stepMs, int[] colors) {
+    glRun(stepMs);
+    updateColors(colors);
+    keyframes.pushKeyframe(positionBuffer.getPoints(), colors);
+  }
+
+  /**
+   * Render on the GL thread without waiting for it.  The colors keep the last finished frame
+   * until the next one completes.  A new frame is only queued once the previous one is done so
+   * the worker is never writing the buffers that are being read here.
+   */
+  private void runAsync(double deltaMs, int[] colors) {
+    asyncDeltaMs += deltaMs;
+    if (frameJob != null) {
+      if (!frameJob.isDone()) {
+        return;
+      }
+      updateColors(colors);
+    }
+    final double frameDeltaMs = asyncDeltaMs;
+    asyncDeltaMs = 0;
+    frameJob = GLWorker.getInstance().execute(() -> glFrame(GLWorker.getGL(), frameDeltaMs));
+  }
+
+  /**
+   * Draw and read back one frame on the GL worker and wait for the result.  The engine thread
+   * only waits for the worker, which may first finish the jobs queued ahead of this one.
+   */
+  public void glRun(double deltaMs) {
+    GLWorker.getInstance().invokeAndWait(() -> glFrame(GLWorker.getGL(), deltaMs));
+  }
+
+  private void glFrame(GL3 gl, double deltaMs) {
+    glDraw(gl, deltaMs);
+    glReadback(gl);
+  }
+
+  /**
+   * Issue this frame's transform feedback draw without reading back the result.
+   * GL_RASTERIZER_DISCARD stops the pipeline after the vertex shader since only the transform
+   * feedback output is used.  The GL context must be current.
+   */
+  @Override
+  public void glDraw(GL3 gl, double deltaMs) {
+    totalTime += deltaMs/1000.0;
+    if (programId <= 0) {
+      // Nothing to draw until a shader compiles.
+      reuseOutput = true;
+      sparseDrawn = false;
+      return;
+    }
+    for (InputProvider provider : providers) {
+      provider.update(gl);
+    }
+    // Geometry changes have to be uploaded before the inputs can be compared.
+    positionBuffer.update(gl);
+    sparseDrawn = sparse.isOn() && packedOutput && sparseFeedback.prepare(gl, programId,
+      this::loadVertexSource, vertexArray.getAttribLocation(), params);
+    if (sparseDrawn && sparseLocated != sparseFeedback.getProgramId()) {
+      sparseLocated = sparseFeedback.getProgramId();
+      locateInputs(gl, sparseLocated);
+    }
+    reuseOutput = !inputsChanged();
+    if (reuseOutput) {
+      return;
+    }
+    vertexArray.bind(gl);
+
+    if (sparseDrawn) {
+      sparseFeedback.begin(gl, positionBuffer.size());
+    } else {
+      // Keyframes need the result of their own evaluation.
+      readback.setPipelined(pipelined.isOn() && !keyframes.isEnabled());
+      readback.begin(gl, packedOutput ? (long) tfbPacked.capacity() * Integer.BYTES : (long) tfbBuffer.capacity() * Float.BYTES);
+    }
+
+    // The sparse variant is a separate program with its own uniform state.
+    final int timeLoc = sparseDrawn ? sparseFeedback.getTimeLocation() : fTimeLoc;
+    final int alphaLoc = sparseDrawn ? sparseFeedback.getAlphaThresholdLocation() : alphaThreshLoc;
+    final UniformTable table = sparseDrawn ? sparseFeedback.getUniforms() : uniforms;
+
+    gl.glEnable(GL_RASTERIZER_DISCARD);
+    gl.glUseProgram(sparseDrawn ? sparseFeedback.getProgramId() : programId);
+
+    if (timeLoc >= 0) {
+      gl.glUniform1f(timeLoc, speed.getValuef() * (float)totalTime);
+    }
+    if (alphaLoc >= 0) {
+      gl.glUniform1f(alphaLoc, alphaThresh.getValuef());
+    }
+    if (!sparseDrawn && programs.claim(programId, this)) {
+      // Another pattern drew with the shared program and left its own slider values in it.
+      uniforms.invalidate();
+    }
+    table.upload(gl);
+    for (InputProvider provider : providers) {
+      provider.bind(gl);
+    }
+    gl.glBeginTransformFeedback(GL_POINTS);
+    {
+      gl.glDrawArrays(GL_POINTS, 0, positionBuffer.size());
+    }
+    gl.glEndTransformFeedback();
+    if (sparseDrawn) {
+      sparseFeedback.endDraw(gl);
+    }
+
+    gl.glUseProgram(0);
+    vertexArray.unbind(gl);
+    gl.glDisable(GL_RASTERIZER_DISCARD);
+    for (InputProvider provider : providers) {
+      provider.afterDraw(gl);
+    }
+  }
+
+  /**
+   * Read back the shader output, possibly from an earlier frame when pipelined.  The GL context
+   * must be current.
+   */
+  @Override
+  public void glReadback(GL3 gl) {
+    if (sparseDrawn) {
+      if (!reuseOutput) {
+        sparseFeedback.read(gl, tfbPacked);
+      }
+    } else if (reuseOutput) {
+      // Nothing was drawn, just collect a pipelined frame that may still be in flight.
+      readback.drain(gl, packedOutput ? tfbPacked : tfbBuffer);
+    } else {
+      readback.end(gl, packedOutput ? tfbPacked : tfbBuffer);
+    }
+  }
+
+  @Override
+  public boolean waitsForResult() {
+    return !pipelined.isOn() && !reuseOutput;
+  }
+
+  /**
+   * Choose the points this frame evaluates.  Only the pattern's points, or their representatives
+   * at reduced detail, are uploaded, evaluated and read back.  Runs on the engine thread, which is
+   * where the position buffers are acquired and released since they listen for model changes.
+   *
+   * @return true if the points changed.
+   */
+  private boolean selectPoints() {
+    LXPoint[] evaluated = lod.update(component.getModel().points, lodQuality.getValuef());
+    if (positionBuffer.getPoints() != evaluated) {
+      setPoints(evaluated);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Switch the points the shader is evaluated on, resizing the output buffers to match.  The
+   * positions are uploaded on the next draw unless another pattern already has.  Points keep
+   * their LXPoint index so the results are scattered back into colors as before.
+   */
+  private void setPoints(LXPoint[] points) {
+    ModelPositionBuffer previous = positionBuffer;
+    positionBuffer = positionBuffers.acquire(points);
+    vertexArray.setPositions(positionBuffer);
+    positionBuffers.release(previous);
+    if (tfbPacked.capacity() != points.length) {
+      tfbBuffer = GLBuffers.newDirectFloatBuffer(points.length * 3);
+      tfbPacked = GLBuffers.newDirectIntBuffer(points.length);
+    }
+  }
+
+  /**
+   * Record everything the shader output depends on and compare it with the last evaluation.
+   * A shader without an fTime uniform is time-invariant, so the clock only counts when the
+   * program actually reads it.
+   */
+  private boolean inputsChanged() {
+    inputs.begin()
+      .add(programId)
+      .add(positionBuffer.getVersion())
+      .add(positionBuffer.size())
+      .add(sparseDrawn ? 1 : 0);
+    if (fTimeLoc >= 0) {
+      inputs.add(speed.getValuef() * (float)totalTime);
+    }
+    if (alphaThreshLoc >= 0) {
+      inputs.add(alphaThresh.getValuef());
+    }
+    uniforms.addTo(inputs);
+    for (InputProvider provider : providers) {
+      provider.addTo(inputs);
+    }
+    return inputs.changed();
+  }
+
+  /**
+   * Copy the most recent shader output into colors.
+   */
+  private void updateColors(int[] colors) {
+    final LXPoint[] points = positionBuffer.getPoints();
+    if (packedOutput) {
+      // Already ARGB with the alpha threshold applied on the GPU.
+      colorKernel.copyPacked(tfbPacked, points, colors);
+    } else {
+      colorKernel.convert(tfbBuffer, points, colors, alphaThresh.getValuef());
+    }
+    // Fill in the points that were not evaluated at reduced detail.
+    lod.reconstruct(points, colors);
+  }
+
+  /**
+   * Forwarded from the pattern.  Logs a mode's statistics when it is switched off, and all of
+   * them when stats is pressed.
+   */
+  public void onParameterChanged(LXParameter p) {
+    if (p == this.batched && !batched.isOn()) {
+      GLFrameScheduler.getInstance(lx).remove(this);
+    }
+    if (p == this.evalRate && evalRate.getValue() <= 0) {
+      LX.log(keyframes.getStats());
+      keyframes.resetStats();
+    }
+    if (p == this.sparse && !sparse.isOn()) {
+      LX.log(sparseFeedback.getStats());
+      sparseFeedback.resetStats();
+    }
+    if (p == this.pipelined) {
+      // Log the stats for the mode we are leaving so the two modes can be compared.
+      LX.log(readback.getStats());
+      readback.resetStats();
+    }
+    if (p == this.stats && stats.isOn()) {
+      LX.log(readback.getStats());
+      LX.log(inputs.getStats());
+      LX.log(keyframes.getStats());
+      LX.log(lod.getStats());
+      LX.log(sparseFeedback.getStats());
+      LX.log(positionBuffers.getStats());
+      LX.log(programs.getStats());
+    }
+  }
+
+  /**
+   * Stop drawing and free the GL resources, including those of the inputs, on the GL thread
+   * without waiting.
+   */
+  public void dispose() {
+    GLFrameScheduler.getInstance(lx).remove(this);
+    // Loads still in flight are discarded when they complete.
+    loadGeneration.incrementAndGet();
+    discard(pendingProgram.getAndSet(null));
+    GLWorker.getInstance().execute(() -> glDispose(GLWorker.getGL()));
+    // Its GPU buffer is deleted on the GL thread after the job above.
+    positionBuffers.release(positionBuffer);
+  }
+
+  private void glDispose(GL3 gl) {
+    for (InputProvider provider : providers) {
+      provider.dispose(gl);
+    }
+    deleteProgram(gl);
+    vertexArray.dispose(gl);
+    readback.dispose(gl);
+    uniforms.dispose(gl);
+    sparseFeedback.dispose(gl);
+    GLUtil.checkGLError(gl, "resource disposal");
+  }
+}
@@ -0,0 +1,193 @@
+package xyz.theforks.ckvshader.util;
+
+import com.jogamp.opengl.GL3;
+import heronarts.lx.LX;
+import heronarts.lx.parameter.CompoundParameter;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Map;
+
+import static com.jogamp.opengl.GL.GL_DYNAMIC_DRAW;
+import static com.jogamp.opengl.GL2ES3.GL_INVALID_INDEX;
+import static com.jogamp.opengl.GL2ES3.GL_UNIFORM_BLOCK_DATA_SIZE;
+import static com.jogamp.opengl.GL2ES3.GL_UNIFORM_BUFFER;
+import static com.jogamp.opengl.GL2ES3.GL_UNIFORM_OFFSET;
+
+/**
+ * The ISF parameters of a linked shader program flattened into arrays of parameters, uniform
+ * locations and the last value sent to the GPU.  Built once when the shader is (re)loaded so the
+ * per-frame upload is a walk over primitive arrays that only calls glUniform1f for values that
+ * actually changed.  Uniform values are part of program state so a value only has to be sent
+ * again after the program is re-linked.
+ *
+ * A shader can opt in to a uniform buffer by declaring its ISF inputs in a block named
+ * {@link #BLOCK_NAME}, for example:
+ * <pre>
+ * layout(std140) uniform ISFInputs {
+ *   float x1;
+ *   float y1;
+ * };
+ * </pre>
+ * Parameters found in the block are written into a CPU copy at the offsets reported by the
+ * driver and the changed range is sent with a single glBufferSubData.  Parameters declared
+ * outside the block still use glUniform1f.
+ */
+public class UniformTable {
+
+  public static final String BLOCK_NAME = "ISFInputs";
+  // Uniform buffer binding point used for the ISF block.  Each table binds its own buffer here
+  // before drawing.
+  public static final int BLOCK_BINDING = 1;
+
+  private CompoundParameter[] params = new CompoundParameter[0];
+  private int[] locations = new int[0];
+  // Byte offset within the uniform block, -1 for plain uniforms.
+  private int[] blockOffsets = new int[0];
+  private float[] lastSent = new float[0];
+
+  private int uboId = 0;
+  private int blockSize = 0;
+  private ByteBuffer blockData;
+
+  private long uploads = 0;
+
+  /**
+   * Rebuild the table for a newly linked program.  Must be called with the GL context current.
+   *
+   * @param params ISF parameters by uniform name.
+   * @param knownLocations Uniform locations that are already known, such as those restored from
+   *                       the shader cache.  Anything missing is queried from the program.
+   */
+  public void build(GL3 gl, int programId, Map<String, CompoundParameter> params,
+                    Map<String, Integer> knownLocations) {
+    final int n = params.size();
+    this.params = new CompoundParameter[n];
+    this.locations = new int[n];
+    this.blockOffsets = new int[n];
+    this.lastSent = new float[n];
+    String[] names = new String[n];
+    int i = 0;
+    for (Map.Entry<String, CompoundParameter> entry : params.entrySet()) {
+      names[i] = entry.getKey();
+      this.params[i] = entry.getValue();
+      Integer loc = knownLocations.get(entry.getKey());
+      this.locations[i] = (loc != null) ? loc : gl.glGetUniformLocation(programId, entry.getKey());
+      i++;
+    }
+    Arrays.fill(blockOffsets, -1);
+    buildBlock(gl, programId, names);
+    invalidate();
+  }
+
+  private void buildBlock(GL3 gl, int programId, String[] names) {
+    blockSize = 0;
+    blockData = null;
+    int blockIndex = gl.glGetUniformBlockIndex(programId, BLOCK_NAME);
+    if (blockIndex == GL_INVALID_INDEX || names.length == 0) {
+      return;
+    }
+    int[] size = new int[1];
+    gl.glGetActiveUniformBlockiv(programId, blockIndex, GL_UNIFORM_BLOCK_DATA_SIZE, size, 0);
+    int[] indices = new int[names.length];
+    gl.glGetUniformIndices(programId, names.length, names, indices, 0);
+    for (int i = 0; i < names.length; i++) {
+      if (indices[i] == GL_INVALID_INDEX) continue;
+      int[] offset = new int[1];
+      gl.glGetActiveUniformsiv(programId, 1, new int[] {indices[i]}, 0, GL_UNIFORM_OFFSET, offset, 0);
+      // Members of a named block have no location.
+      if (offset[0] >= 0 && offset[0] + Float.BYTES <= size[0]) {
+        blockOffsets[i] = offset[0];
+        locations[i] = -1;
+      }
+    }
+    gl.glUniformBlockBinding(programId, blockIndex, BLOCK_BINDING);
+    blockSize = size[0];
+    blockData = ByteBuffer.allocateDirect(blockSize).order(ByteOrder.nativeOrder());
+    if (uboId == 0) {
+      int[] ids = new int[1];
+      gl.glGenBuffers(1, ids, 0);
+      uboId = ids[0];
+    }
+    gl.glBindBuffer(GL_UNIFORM_BUFFER, uboId);
+    gl.glBufferData(GL_UNIFORM_BUFFER, blockSize, blockData, GL_DYNAMIC_DRAW);
+    gl.glBindBuffer(GL_UNIFORM_BUFFER, 0);
+    LX.log("Using uniform block " + BLOCK_NAME + " (" + blockSize + " bytes) for ISF parameters");
+  }
+
+  /**
+   * Force every value to be sent on the next upload.
+   */
+  public void invalidate() {
+    Arrays.fill(lastSent, Float.NaN);
+  }
+
+  public boolean usesBlock() {
+    return blockData != null;
+  }
+
+  /**
+   * Send any parameter values that changed since the last upload.  The program must be in use.
+   */
+  public void upload(GL3 gl) {
+    int dirtyStart = Integer.MAX_VALUE;
+    int dirtyEnd = -1;
+    for (int i = 0; i < params.length; i++) {
+      final float value = params[i].getValuef();
+      // Compare bits so that the NaN set by invalidate() always counts as a change.
+      if (Float.floatToRawIntBits(value) == Float.floatToRawIntBits(lastSent[i])) {
+        continue;
+      }
+      lastSent[i] = value;
+      final int offset = blockOffsets[i];
+      if (offset >= 0) {
+        blockData.putFloat(offset, value);
+        dirtyStart = Math.min(dirtyStart, offset);
+        dirtyEnd = Math.max(dirtyEnd, offset + Float.BYTES);
+      } else if (locations[i] >= 0) {
+        gl.glUniform1f(locations[i], value);
+        uploads++;
+      }
+    }
+    if (blockData != null) {
+      if (dirtyEnd > dirtyStart) {
+        gl.glBindBuffer(GL_UNIFORM_BUFFER, uboId);
+        blockData.position(dirtyStart);
+        gl.glBufferSubData(GL_UNIFORM_BUFFER, dirtyStart, dirtyEnd - dirtyStart, blockData);
+        blockData.rewind();
+        uploads++;
+      }
+      // The binding point is shared with other patterns so it always has to be bound.
+      gl.glBindBufferBase(GL_UNIFORM_BUFFER, BLOCK_BINDING, uboId);
+    }
+  }
+
+  /**
+   * Add the current value of every parameter to a fingerprint of the shader inputs.
+   */
+  public void addTo(InputFingerprint fingerprint) {
+    for (int i = 0; i < params.length; i++) {
+      fingerprint.add(params[i].getValuef());
+    }
+  }
+
+  /**
+   * Number of glUniform1f and glBufferSubData calls made so far.
+   */
+  public long getUploadCount() {
+    return uploads;
+  }
+
+  /**
+   * Release the uniform buffer, if any.  Must be called with the GL context current.
+   */
+  public void dispose(GL3 gl) {
+    if (uboId != 0) {
+      gl.glDeleteBuffers(1, new int[] {uboId}, 0);
+      uboId = 0;
+    }
+    blockData = null;
+    blockSize = 0;
+  }
+}
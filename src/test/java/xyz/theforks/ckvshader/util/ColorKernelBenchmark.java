@@ -0,0 +1,93 @@
+package xyz.theforks.ckvshader.util;
+
+import com.jogamp.opengl.util.GLBuffers;
+import heronarts.lx.LX;
+import heronarts.lx.color.LXColor;
+import heronarts.lx.model.LXPoint;
+
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+/**
+ * Compares the per-point LXColor conversion the patterns used to do with the {@link ColorKernel}
+ * loop and with the full parallel pass.  Kept with the tests so it isn't shipped in the plugin:
+ * <pre>
+ * java -cp target/classes:target/test-classes:... xyz.theforks.ckvshader.util.ColorKernelBenchmark
+ * </pre>
+ */
+public class ColorKernelBenchmark {
+
+  private static final int[] SIZES = {10_000, 100_000, 1_000_000};
+  private static final float THRESHOLD = 0.1f;
+
+  public static void main(String[] args) {
+    run();
+  }
+
+  /**
+   * Time each implementation at each size and log the average time per conversion.
+   */
+  public static void run() {
+    Random random = new Random(1);
+    for (int n : SIZES) {
+      FloatBuffer buffer = GLBuffers.newDirectFloatBuffer(n * 3);
+      float[] rgb = new float[n * 3];
+      for (int i = 0; i < rgb.length; i++) {
+        // Mostly dark, like a typical shader, with some points over range.
+        rgb[i] = random.nextFloat() * random.nextFloat() * 1.1f;
+      }
+      buffer.put(rgb).rewind();
+      int[] colors = new int[n];
+      int[] argb = new int[n];
+      final int iterations = Math.max(10, 20_000_000 / n);
+
+      double legacy = time(iterations, () -> legacyConvert(buffer, n, colors, THRESHOLD));
+      double loop = time(iterations, () -> ColorKernel.convert(rgb, argb, 0, n, THRESHOLD));
+      String result = String.format("Color conversion %,d points: LXColor loop %.3f ms, kernel loop %.3f ms (%.1fx)",
+        n, legacy, loop, legacy / loop);
+      // The whole pass as the patterns run it, including the copy out of the buffer and the
+      // parallel chunks above ParallelScatter.PARALLEL_THRESHOLD points.
+      LXPoint[] points = new LXPoint[n];
+      for (int i = 0; i < n; i++) {
+        points[i] = new LXPoint();
+        points[i].index = i;
+      }
+      ColorKernel kernel = new ColorKernel();
+      double pass = time(iterations, () -> kernel.convert(buffer, points, colors, THRESHOLD));
+      result += String.format(", full pass %.3f ms (%.1fx)", pass, legacy / pass);
+      LX.log(result);
+    }
+  }
+
+  private static double time(int iterations, Runnable body) {
+    // Warm up so the JIT has compiled the loop before timing.
+    for (int i = 0; i < iterations; i++) {
+      body.run();
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      body.run();
+    }
+    return (System.nanoTime() - start) / 1e6 / iterations;
+  }
+
+  /**
+   * The conversion loop the patterns used before ColorKernel.
+   */
+  private static void legacyConvert(FloatBuffer tfbBuffer, int n, int[] colors, float threshold) {
+    for (int i = 0; i < n; i++) {
+      float red = tfbBuffer.get(i * 3);
+      float green = tfbBuffer.get(i * 3 + 1);
+      float blue = tfbBuffer.get(i * 3 + 2);
+      int color = LXColor.rgbf(red, green, blue);
+      float bright = LXColor.luminosity(color) / 100f;
+      if (bright < threshold) {
+        float alpha = (bright / threshold);
+        colors[i] = LXColor.rgba(LXColor.red(color), LXColor.green(color), LXColor.blue(color),
+          (int) (255f * alpha));
+      } else {
+        colors[i] = color;
+      }
+    }
+  }
+}